@@ -0,0 +1,116 @@
+package org.hackyourlife.audio.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.analysis.Autoloop;
+import org.hackyourlife.audio.analysis.EnergyIndex;
+import org.hackyourlife.audio.analysis.LowerBounds;
+import org.hackyourlife.audio.analysis.SpectraLoop;
+import org.hackyourlife.audio.analysis.Spectrogram;
+import org.hackyourlife.audio.analysis.SpectrogramData;
+import org.hackyourlife.audio.dsp.FFT;
+import org.hackyourlife.audio.dsp.Filterbank;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of a single candidate evaluation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class EstimateBenchmark {
+	@Param({ "1", "2" })
+	public int channels;
+
+	@Param({ "256", "1000", "4096" })
+	public int tail;
+
+	private AudioBuffer samples;
+	private SpectrogramData spectrogram;
+	private SpectrogramData spectrogram16;
+	private SpectrogramData spectrogram8;
+	private SpectrogramData spectrogramMel;
+	private LowerBounds bounds;
+	private int start;
+	private int end;
+
+	@Setup
+	public void setup() {
+		samples = SyntheticWave.normalized(channels, 4 * SyntheticWave.SAMPLE_RATE);
+		spectrogram = Spectrogram.spectrogram(samples, 2048, 128, FFT.HAMMING, 1024, 1, SpectrogramData.FLOAT);
+		spectrogram16 = Spectrogram.spectrogram(samples, 2048, 128, FFT.HAMMING, 1024, 1, SpectrogramData.LOG16);
+		spectrogram8 = Spectrogram.spectrogram(samples, 2048, 128, FFT.HAMMING, 1024, 1, SpectrogramData.LOG8);
+		Filterbank mel = new Filterbank(Filterbank.MEL, 64, 2048, SyntheticWave.SAMPLE_RATE);
+		spectrogramMel = Spectrogram.spectrogram(samples, 2048, 128, FFT.HAMMING, 1024, 1, SpectrogramData.FLOAT,
+				mel);
+		bounds = new LowerBounds(samples, new EnergyIndex(samples), tail);
+		start = SyntheticWave.SAMPLE_RATE / 2;
+		end = start + 2 * SyntheticWave.SAMPLE_RATE + 17;
+	}
+
+	@Benchmark
+	public float autoloopEstimate() {
+		return Autoloop.estimate(samples, start, end, tail);
+	}
+
+	@Benchmark
+	public float autoloopEstimateVector() {
+		return Autoloop.estimateVector(samples, start, end, tail, Float.POSITIVE_INFINITY, null);
+	}
+
+	@Benchmark
+	public double energyBound() {
+		return bounds.energyBound(start, end);
+	}
+
+	@Benchmark
+	public double sketchBound() {
+		return bounds.sketchBound(start, end, Double.POSITIVE_INFINITY);
+	}
+
+	@Benchmark
+	public float spectraLoopEstimate() {
+		return spectraLoopEstimate(spectrogram);
+	}
+
+	@Benchmark
+	public float spectraLoopEstimate16() {
+		return spectraLoopEstimate(spectrogram16);
+	}
+
+	@Benchmark
+	public float spectraLoopEstimate8() {
+		return spectraLoopEstimate(spectrogram8);
+	}
+
+	@Benchmark
+	public float spectraLoopEstimateMel() {
+		return spectraLoopEstimate(spectrogramMel);
+	}
+
+	@Benchmark
+	public float spectraLoopEstimateVector() {
+		int frames = Math.min(tail, spectrogram.getFrames() / 4);
+		return SpectraLoop.estimateVector(spectrogram, 0, spectrogram.getFrames() / 2, frames);
+	}
+
+	private float spectraLoopEstimate(SpectrogramData data) {
+		// tail is interpreted as a number of frames here, which caps it at the spectrogram size
+		int frames = Math.min(tail, data.getFrames() / 4);
+		return SpectraLoop.estimate(data, 0, data.getFrames() / 2, frames);
+	}
+}
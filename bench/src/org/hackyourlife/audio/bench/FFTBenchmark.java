@@ -0,0 +1,67 @@
+package org.hackyourlife.audio.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hackyourlife.audio.dsp.FFT;
+import org.hackyourlife.audio.dsp.FFTPlan;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Real input transforms at the spectrogram size and the pitch estimation size. The transform works in place, so
+ * every invocation includes copying the input into the work buffers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FFTBenchmark {
+	@Param({ "2048", "131072" })
+	public int size;
+
+	private FFTPlan plan;
+	private double[] input;
+	private double[] re;
+	private double[] im;
+
+	@Setup
+	public void setup() {
+		float[] mono = SyntheticWave.normalized(1, size).getData();
+		double[] window = FFT.makeWindow(FFT.HANN, size, size);
+		input = new double[size];
+		for(int i = 0; i < size; i++) {
+			input[i] = mono[i] * window[i];
+		}
+		re = new double[size];
+		im = new double[size];
+		plan = FFTPlan.get(size);
+	}
+
+	@Benchmark
+	public double[] magnitudePhaseFFT() {
+		System.arraycopy(input, 0, re, 0, size);
+		for(int i = 0; i < size; i++) {
+			im[i] = 0;
+		}
+		FFT.magnitudePhaseFFT(re, im);
+		return re;
+	}
+
+	@Benchmark
+	public double[] magnitudeSpectrum() {
+		System.arraycopy(input, 0, re, 0, size);
+		plan.magnitudeSpectrum(re);
+		return re;
+	}
+}
@@ -0,0 +1,82 @@
+package org.hackyourlife.audio.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.analysis.Autoloop;
+import org.hackyourlife.audio.analysis.Loop;
+import org.hackyourlife.audio.analysis.PeriodicLoop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A complete normal mode search, with the parameters named after the AutoSample options.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoopBenchmark {
+	@Param({ "4" })
+	public int seconds;
+
+	@Param({ "1", "2", "4" })
+	public int p;
+
+	@Param({ "4000", "1000" })
+	public int s;
+
+	@Param({ "1000" })
+	public int t;
+
+	@Param({ "direct", "bounded", "fft", "simd", "diagonal" })
+	public String engine;
+
+	private AudioBuffer samples;
+	private int engineId;
+
+	@Setup
+	public void setup() {
+		samples = SyntheticWave.normalized(2, seconds * SyntheticWave.SAMPLE_RATE);
+		switch(engine) {
+		case "direct":
+			engineId = Autoloop.DIRECT;
+			break;
+		case "bounded":
+			engineId = Autoloop.BOUNDED;
+			break;
+		case "fft":
+			engineId = Autoloop.CORRELATION;
+			break;
+		case "simd":
+			engineId = Autoloop.VECTOR;
+			break;
+		case "diagonal":
+			engineId = Autoloop.DIAGONAL;
+			break;
+		default:
+			throw new IllegalArgumentException("unknown engine " + engine);
+		}
+	}
+
+	@Benchmark
+	public Loop[] loop() throws InterruptedException {
+		return Autoloop.loop(samples, 0, s, SyntheticWave.SAMPLE_RATE, t, 10, p, engineId, null);
+	}
+
+	@Benchmark
+	public Loop[] periodicLoop() throws InterruptedException {
+		return PeriodicLoop.loop(samples, 0, s, SyntheticWave.SAMPLE_RATE, t, 10, p, engineId, 4, 0, null, null);
+	}
+}
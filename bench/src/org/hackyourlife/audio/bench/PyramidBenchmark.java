@@ -0,0 +1,59 @@
+package org.hackyourlife.audio.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.analysis.Loop;
+import org.hackyourlife.audio.analysis.Pyramid;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The coarse-to-fine search, to be compared with {@link LoopBenchmark} and engine=bounded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PyramidBenchmark {
+	@Param({ "4", "30" })
+	public int seconds;
+
+	@Param({ "1" })
+	public int p;
+
+	@Param({ "4000" })
+	public int s;
+
+	@Param({ "1000" })
+	public int t;
+
+	@Param({ "1", "2", "3" })
+	public int y;
+
+	@Param({ "4096" })
+	public int r;
+
+	private AudioBuffer samples;
+
+	@Setup
+	public void setup() {
+		samples = SyntheticWave.normalized(2, seconds * SyntheticWave.SAMPLE_RATE);
+	}
+
+	@Benchmark
+	public Loop[] loop() throws InterruptedException {
+		return Pyramid.loop(samples, 0, s, SyntheticWave.SAMPLE_RATE, t, 10, p, y, r, null);
+	}
+}
@@ -0,0 +1,113 @@
+package org.hackyourlife.audio.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.Normalizer;
+import org.hackyourlife.audio.io.riff.MappedRiffWave;
+import org.hackyourlife.audio.io.riff.Riff;
+import org.hackyourlife.audio.io.riff.RiffWave;
+import org.hackyourlife.audio.io.riff.WaveFormatChunk;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decoding of a 10 second stereo file in every supported sample format. The mapped benchmarks read the same file
+ * from a temporary file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RiffWaveBenchmark {
+	@Param({ "pcm8", "pcm16", "pcm24", "pcm32", "float32" })
+	public String format;
+
+	private byte[] file;
+	private RiffWave wav;
+	private Path path;
+	private MappedRiffWave mapped;
+
+	@Setup
+	public void setup() throws IOException {
+		int length = 10 * SyntheticWave.SAMPLE_RATE;
+		switch(format) {
+		case "pcm8":
+			file = SyntheticWave.file(2, length, 8, WaveFormatChunk.WAVE_FORMAT_PCM);
+			break;
+		case "pcm16":
+			file = SyntheticWave.file(2, length, 16, WaveFormatChunk.WAVE_FORMAT_PCM);
+			break;
+		case "pcm24":
+			file = SyntheticWave.file(2, length, 24, WaveFormatChunk.WAVE_FORMAT_PCM);
+			break;
+		case "pcm32":
+			file = SyntheticWave.file(2, length, 32, WaveFormatChunk.WAVE_FORMAT_PCM);
+			break;
+		case "float32":
+			file = SyntheticWave.file(2, length, 32, WaveFormatChunk.WAVE_FORMAT_IEEE_FLOAT);
+			break;
+		default:
+			throw new IllegalArgumentException("unknown format " + format);
+		}
+		wav = Riff.read(new ByteArrayInputStream(file));
+		path = Files.createTempFile("autoloop", ".wav");
+		Files.write(path, file);
+		mapped = MappedRiffWave.open(path);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mapped.close();
+		Files.delete(path);
+	}
+
+	@Benchmark
+	public RiffWave read() throws IOException {
+		return Riff.read(new ByteArrayInputStream(file));
+	}
+
+	@Benchmark
+	public int[][] getSamples() {
+		return wav.getSamples();
+	}
+
+	@Benchmark
+	public float[][] getFloatSamples() {
+		return wav.getFloatSamples();
+	}
+
+	@Benchmark
+	public AudioBuffer readNormalized() throws IOException {
+		return Normalizer.normalize(Riff.<RiffWave> read(new ByteArrayInputStream(file)).getSamples(),
+				AudioBuffer.INTERLEAVED);
+	}
+
+	@Benchmark
+	public AudioBuffer mappedNormalized() throws IOException {
+		try(MappedRiffWave wave = MappedRiffWave.open(path)) {
+			return Normalizer.normalize(wave, AudioBuffer.INTERLEAVED);
+		}
+	}
+
+	@Benchmark
+	public int[][] mappedGetSamples() {
+		return mapped.getSamples();
+	}
+}
@@ -0,0 +1,44 @@
+package org.hackyourlife.audio.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.analysis.Spectrogram;
+import org.hackyourlife.audio.dsp.FFT;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The spectrogram of pass 1 of the advanced analysis, with the parameters AutoSample uses.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpectrumBenchmark {
+	@Param({ "1", "2", "4" })
+	public int p;
+
+	private AudioBuffer samples;
+
+	@Setup
+	public void setup() {
+		samples = SyntheticWave.normalized(2, 10 * SyntheticWave.SAMPLE_RATE);
+	}
+
+	@Benchmark
+	public float[][][] spectrogram() {
+		return Spectrogram.spectrogram(samples, 2048, 128, FFT.HAMMING, 1024, p);
+	}
+}
@@ -0,0 +1,62 @@
+package org.hackyourlife.audio.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.analysis.Loop;
+import org.hackyourlife.audio.analysis.StreamingAutoloop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The incremental search fed in blocks, to be compared with {@link LoopBenchmark} with p=1 and engine=bounded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamingBenchmark {
+	@Param({ "4" })
+	public int seconds;
+
+	@Param({ "4000" })
+	public int s;
+
+	@Param({ "1000" })
+	public int t;
+
+	@Param({ "256", "4096" })
+	public int block;
+
+	@Param({ "-1", "48000" })
+	public int region;
+
+	private float[][] samples;
+
+	@Setup
+	public void setup() {
+		AudioBuffer buffer = SyntheticWave.normalized(2, seconds * SyntheticWave.SAMPLE_RATE);
+		samples = buffer.toArray();
+	}
+
+	@Benchmark
+	public Loop[] loop() {
+		StreamingAutoloop search = new StreamingAutoloop(samples.length, 0, s, SyntheticWave.SAMPLE_RATE, t, 10,
+				region);
+		for(int i = 0; i < samples[0].length; i += block) {
+			search.append(samples, i, Math.min(block, samples[0].length - i));
+		}
+		return search.getLoops();
+	}
+}
@@ -0,0 +1,87 @@
+package org.hackyourlife.audio.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.Normalizer;
+import org.hackyourlife.audio.io.riff.DataChunk;
+import org.hackyourlife.audio.io.riff.RiffWave;
+import org.hackyourlife.audio.io.riff.WaveFormatChunk;
+
+/**
+ * Deterministic test material for the benchmarks: a sustained harmonic tone with slow pitch and amplitude
+ * modulation plus a little noise, similar to a recorded synth pad. The same parameters always produce the same
+ * samples, so results are comparable between runs and machines without any external audio files.
+ */
+public class SyntheticWave {
+	public static final int SAMPLE_RATE = 48000;
+
+	private static final long SEED = 0x5A4D504C;
+	private static final double FREQUENCY = 220.0;
+	private static final int HARMONICS = 8;
+	private static final double VIBRATO_RATE = 5.5;
+	private static final double VIBRATO_DEPTH = 0.003;
+	private static final double TREMOLO_RATE = 0.5;
+	private static final double TREMOLO_DEPTH = 0.2;
+	private static final double NOISE = 0.002;
+
+	/**
+	 * Returns the samples in the full 32bit range, like {@link RiffWave#getSamples()}.
+	 */
+	public static int[][] samples(int channels, int length) {
+		int[][] samples = new int[channels][length];
+		for(int ch = 0; ch < channels; ch++) {
+			Random rng = new Random(SEED + ch);
+			double detune = 1.0 + 0.0005 * ch;
+			double phase = 0;
+			for(int i = 0; i < length; i++) {
+				double t = i / (double) SAMPLE_RATE;
+				double f = FREQUENCY * detune * (1 + VIBRATO_DEPTH * Math.sin(2 * Math.PI * VIBRATO_RATE * t));
+				phase += 2 * Math.PI * f / SAMPLE_RATE;
+				double value = 0;
+				for(int h = 1; h <= HARMONICS; h++) {
+					value += Math.sin(h * phase) / h;
+				}
+				value *= 0.4 * (1 - TREMOLO_DEPTH * (0.5 + 0.5 * Math.sin(2 * Math.PI * TREMOLO_RATE * t)));
+				value += NOISE * rng.nextGaussian();
+				value = Math.max(-1, Math.min(1, value));
+				samples[ch][i] = (int) (value * Integer.MAX_VALUE);
+			}
+		}
+		return samples;
+	}
+
+	public static AudioBuffer normalized(int channels, int length) {
+		return Normalizer.normalize(samples(channels, length), AudioBuffer.INTERLEAVED);
+	}
+
+	/**
+	 * Creates a wave file in memory.
+	 *
+	 * @param bits
+	 *                8, 16, 24 or 32
+	 * @param format
+	 *                {@link WaveFormatChunk#WAVE_FORMAT_PCM} or {@link WaveFormatChunk#WAVE_FORMAT_IEEE_FLOAT}
+	 */
+	public static RiffWave wave(int channels, int length, int bits, short format) {
+		WaveFormatChunk fmt = new WaveFormatChunk();
+		fmt.setFormat(format);
+		fmt.setChannels((short) channels);
+		fmt.setSampleRate(SAMPLE_RATE);
+		fmt.setBitsPerSample((short) bits);
+
+		RiffWave wav = new RiffWave();
+		wav.set(fmt);
+		wav.set(new DataChunk());
+		wav.setSamples(samples(channels, length));
+		return wav;
+	}
+
+	public static byte[] file(int channels, int length, int bits, short format) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		wave(channels, length, bits, format).write(out);
+		return out.toByteArray();
+	}
+}
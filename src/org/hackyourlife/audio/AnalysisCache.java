@@ -0,0 +1,326 @@
+package org.hackyourlife.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.hackyourlife.audio.analysis.Loop;
+import org.hackyourlife.audio.analysis.SpectrogramData;
+import org.hackyourlife.audio.io.riff.MappedRiffWave;
+
+/**
+ * On-disk cache for the analysis results which only depend on the audio data and the search options: the loop
+ * candidates of a search, the spectrogram of the advanced analysis and the estimated pitch. A rerun with a different
+ * weighting, root key or output file then skips the analysis.
+ *
+ * Entries are keyed by a SHA-256 hash of the format and data chunk of the input file and the options the result
+ * depends on, see {@link AnalysisCache#key(String, Object...)}. Every entry is a small binary file in the cache
+ * directory. Entries are written to a temporary file and moved in place, so concurrent batch jobs and interrupted
+ * runs never leave broken entries behind; entries which cannot be read are treated as missing.
+ */
+public class AnalysisCache {
+	// "ALC1"
+	private static final int MAGIC = 0x414C4331;
+	// part of every key, increment when the results of the analysis change
+	private static final int VERSION = 1;
+
+	private static final int LOOPS = 0;
+	private static final int SPECTROGRAM = 1;
+	private static final int PITCH = 2;
+
+	private static final int BUFFER_SIZE = 65536;
+
+	private final Path dir;
+
+	public AnalysisCache(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+	}
+
+	public Path getDirectory() {
+		return dir;
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException e) {
+			// every Java platform has to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] digest) {
+		StringBuilder buf = new StringBuilder(digest.length * 2);
+		for(byte b : digest) {
+			buf.append(Character.forDigit((b >> 4) & 0x0F, 16));
+			buf.append(Character.forDigit(b & 0x0F, 16));
+		}
+		return buf.toString();
+	}
+
+	/**
+	 * Hashes the sample format and the data chunk of a file. Files with the same samples have the same hash, even
+	 * if their other chunks (loop points, names, ...) differ.
+	 */
+	public static String hash(MappedRiffWave wav) {
+		MessageDigest md = sha256();
+		ByteBuffer format = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		format.putInt(wav.getSampleRate());
+		format.putShort((short) wav.getChannels());
+		format.putShort(wav.getSampleFormat());
+		format.putShort(wav.getBitsPerSample());
+		format.flip();
+		md.update(format);
+		md.update(wav.getData());
+		return hex(md.digest());
+	}
+
+	/**
+	 * Derives the key of an entry from the hash of the audio data, the kind of result and the options it depends on.
+	 */
+	public static String key(String hash, Object... params) {
+		StringBuilder buf = new StringBuilder();
+		buf.append(VERSION).append(':').append(hash);
+		for(Object param : params) {
+			buf.append(':').append(param);
+		}
+		return hex(sha256().digest(buf.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private Path getPath(String key, int type) {
+		switch(type) {
+		case LOOPS:
+			return dir.resolve(key + ".loops");
+		case SPECTROGRAM:
+			return dir.resolve(key + ".spec");
+		default:
+			return dir.resolve(key + ".pitch");
+		}
+	}
+
+	/**
+	 * Opens an entry and checks its header, returns null if the entry does not exist or is not valid.
+	 */
+	private FileChannel open(String key, int type) throws IOException {
+		FileChannel in;
+		try {
+			in = FileChannel.open(getPath(key, type), StandardOpenOption.READ);
+		} catch(NoSuchFileException e) {
+			return null;
+		}
+		try {
+			ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(in, header);
+			if(header.getInt() != MAGIC || header.getInt() != type) {
+				in.close();
+				return null;
+			}
+			return in;
+		} catch(IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+
+	private static void readFully(FileChannel in, ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			if(in.read(buf) < 0) {
+				throw new IOException("truncated cache entry");
+			}
+		}
+		buf.flip();
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while(buf.hasRemaining()) {
+			out.write(buf);
+		}
+		buf.clear();
+	}
+
+	private interface Writer {
+		void write(FileChannel out, ByteBuffer buf) throws IOException;
+	}
+
+	private void put(String key, int type, Writer writer) throws IOException {
+		Path path = getPath(key, type);
+		Path tmp = Files.createTempFile(dir, key, ".tmp");
+		try {
+			try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+				ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				buf.putInt(MAGIC);
+				buf.putInt(type);
+				writer.write(out, buf);
+				writeFully(out, buf);
+			}
+			try {
+				Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Returns the cached loops, or null if there is no (valid) entry.
+	 */
+	public Loop[] getLoops(String key) {
+		try(FileChannel in = open(key, LOOPS)) {
+			if(in == null) {
+				return null;
+			}
+			ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(in, count);
+			int n = count.getInt();
+			if(n < 0 || n > (in.size() - in.position()) / 12) {
+				return null;
+			}
+			ByteBuffer buf = ByteBuffer.allocate(n * 12).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(in, buf);
+			Loop[] loops = new Loop[n];
+			for(int i = 0; i < n; i++) {
+				int start = buf.getInt();
+				int end = buf.getInt();
+				float error = buf.getFloat();
+				loops[i] = new Loop(start, end, error);
+			}
+			return loops;
+		} catch(IOException e) {
+			return null;
+		}
+	}
+
+	public void putLoops(String key, Loop[] loops) throws IOException {
+		put(key, LOOPS, (out, buf) -> {
+			buf.putInt(loops.length);
+			for(Loop loop : loops) {
+				if(buf.remaining() < 12) {
+					writeFully(out, buf);
+				}
+				buf.putInt(loop.start);
+				buf.putInt(loop.end);
+				buf.putFloat(loop.error);
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached spectrogram, or null if there is no (valid) entry.
+	 */
+	public SpectrogramData getSpectrogram(String key) {
+		try(FileChannel in = open(key, SPECTROGRAM)) {
+			if(in == null) {
+				return null;
+			}
+			ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(in, header);
+			int channels = header.getInt();
+			int frames = header.getInt();
+			int bins = header.getInt();
+			int format = header.getInt();
+			SpectrogramData data = new SpectrogramData(channels, frames, bins, format);
+			int size = channels * frames * bins;
+			ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			for(int i = 0; i < size;) {
+				buf.clear();
+				switch(format) {
+				case SpectrogramData.LOG16: {
+					int n = Math.min(size - i, BUFFER_SIZE / 2);
+					buf.limit(n * 2);
+					readFully(in, buf);
+					buf.asShortBuffer().get(data.getShorts(), i, n);
+					i += n;
+					break;
+				}
+				case SpectrogramData.LOG8: {
+					int n = Math.min(size - i, BUFFER_SIZE);
+					buf.limit(n);
+					readFully(in, buf);
+					buf.get(data.getBytes(), i, n);
+					i += n;
+					break;
+				}
+				default: {
+					int n = Math.min(size - i, BUFFER_SIZE / 4);
+					buf.limit(n * 4);
+					readFully(in, buf);
+					buf.asFloatBuffer().get(data.getFloats(), i, n);
+					i += n;
+				}
+				}
+			}
+			return data;
+		} catch(IOException | IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public void putSpectrogram(String key, SpectrogramData data) throws IOException {
+		put(key, SPECTROGRAM, (out, buf) -> {
+			buf.putInt(data.getChannels());
+			buf.putInt(data.getFrames());
+			buf.putInt(data.getBins());
+			buf.putInt(data.getFormat());
+			writeFully(out, buf);
+			int size = data.getChannels() * data.getFrames() * data.getBins();
+			for(int i = 0; i < size;) {
+				switch(data.getFormat()) {
+				case SpectrogramData.LOG16: {
+					int n = Math.min(size - i, BUFFER_SIZE / 2);
+					buf.asShortBuffer().put(data.getShorts(), i, n);
+					buf.position(n * 2);
+					i += n;
+					break;
+				}
+				case SpectrogramData.LOG8: {
+					int n = Math.min(size - i, BUFFER_SIZE);
+					buf.put(data.getBytes(), i, n);
+					i += n;
+					break;
+				}
+				default: {
+					int n = Math.min(size - i, BUFFER_SIZE / 4);
+					buf.asFloatBuffer().put(data.getFloats(), i, n);
+					buf.position(n * 4);
+					i += n;
+				}
+				}
+				writeFully(out, buf);
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached pitch in Hz, or NaN if there is no (valid) entry.
+	 */
+	public double getPitch(String key) {
+		try(FileChannel in = open(key, PITCH)) {
+			if(in == null) {
+				return Double.NaN;
+			}
+			ByteBuffer buf = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(in, buf);
+			return buf.getDouble();
+		} catch(IOException e) {
+			return Double.NaN;
+		}
+	}
+
+	public void putPitch(String key, double freq) throws IOException {
+		put(key, PITCH, (out, buf) -> buf.putDouble(freq));
+	}
+}
@@ -0,0 +1,176 @@
+package org.hackyourlife.audio;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Multichannel float samples stored in one flat array. In {@link AudioBuffer#PLANAR} layout all samples of a
+ * channel are stored contiguously, channel after channel. In {@link AudioBuffer#INTERLEAVED} layout all channels of
+ * a frame are stored contiguously, frame after frame, which means a window of n frames starting at frame i is the
+ * single range [offset(0, i), offset(0, i) + n * channels) of the data array.
+ *
+ * The position of sample i of channel ch is {@code offset(ch, i) = ch * getChannelStride() + i * getFrameStride()}.
+ */
+public class AudioBuffer {
+	/**
+	 * channel after channel
+	 */
+	public static final int PLANAR = 0;
+	/**
+	 * frame after frame
+	 */
+	public static final int INTERLEAVED = 1;
+
+	private final float[] data;
+	private final int channels;
+	private final int length;
+	private final int layout;
+	private final int channelStride;
+	private final int frameStride;
+
+	public AudioBuffer(int channels, int length, int layout) {
+		this(new float[checkSize(channels, length)], channels, length, layout);
+	}
+
+	public AudioBuffer(float[] data, int channels, int length, int layout) {
+		if(channels < 1) {
+			throw new IllegalArgumentException("need at least one channel");
+		}
+		if(data.length != checkSize(channels, length)) {
+			throw new IllegalArgumentException("sample count mismatch");
+		}
+		this.data = data;
+		this.channels = channels;
+		this.length = length;
+		this.layout = layout;
+		switch(layout) {
+		case PLANAR:
+			channelStride = length;
+			frameStride = 1;
+			break;
+		case INTERLEAVED:
+			channelStride = 1;
+			frameStride = channels;
+			break;
+		default:
+			throw new IllegalArgumentException("invalid layout " + layout);
+		}
+	}
+
+	private static int checkSize(int channels, int length) {
+		long size = (long) channels * length;
+		if(length < 0 || size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("invalid buffer size");
+		}
+		return (int) size;
+	}
+
+	public static AudioBuffer planar(float[][] samples) {
+		return of(samples, PLANAR);
+	}
+
+	public static AudioBuffer interleaved(float[][] samples) {
+		return of(samples, INTERLEAVED);
+	}
+
+	public static AudioBuffer of(float[][] samples, int layout) {
+		if(samples.length == 0) {
+			throw new IllegalArgumentException("need at least one channel");
+		}
+		int nch = samples.length;
+		int len = samples[0].length;
+		AudioBuffer buf = new AudioBuffer(nch, len, layout);
+		for(int ch = 0; ch < nch; ch++) {
+			if(samples[ch].length != len) {
+				throw new IllegalArgumentException("sample count mismatch");
+			}
+			buf.setChannel(ch, samples[ch]);
+		}
+		return buf;
+	}
+
+	public float[] getData() {
+		return data;
+	}
+
+	public FloatBuffer asFloatBuffer() {
+		return FloatBuffer.wrap(data);
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getLayout() {
+		return layout;
+	}
+
+	public int getChannelStride() {
+		return channelStride;
+	}
+
+	public int getFrameStride() {
+		return frameStride;
+	}
+
+	public int offset(int ch, int i) {
+		return ch * channelStride + i * frameStride;
+	}
+
+	public float get(int ch, int i) {
+		return data[offset(ch, i)];
+	}
+
+	public void set(int ch, int i, float value) {
+		data[offset(ch, i)] = value;
+	}
+
+	public float[] getChannel(int ch) {
+		float[] result = new float[length];
+		if(layout == PLANAR) {
+			System.arraycopy(data, ch * channelStride, result, 0, length);
+		} else {
+			for(int i = 0, off = ch; i < length; i++, off += frameStride) {
+				result[i] = data[off];
+			}
+		}
+		return result;
+	}
+
+	public void setChannel(int ch, float[] samples) {
+		if(samples.length != length) {
+			throw new IllegalArgumentException("sample count mismatch");
+		}
+		if(layout == PLANAR) {
+			System.arraycopy(samples, 0, data, ch * channelStride, length);
+		} else {
+			for(int i = 0, off = ch; i < length; i++, off += frameStride) {
+				data[off] = samples[i];
+			}
+		}
+	}
+
+	public float[][] toArray() {
+		float[][] result = new float[channels][];
+		for(int ch = 0; ch < channels; ch++) {
+			result[ch] = getChannel(ch);
+		}
+		return result;
+	}
+
+	public AudioBuffer toLayout(int newLayout) {
+		if(newLayout == layout) {
+			return this;
+		}
+		AudioBuffer result = new AudioBuffer(channels, length, newLayout);
+		for(int ch = 0; ch < channels; ch++) {
+			for(int i = 0; i < length; i++) {
+				result.data[result.offset(ch, i)] = data[offset(ch, i)];
+			}
+		}
+		return result;
+	}
+}
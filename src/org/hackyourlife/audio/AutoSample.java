@@ -1,30 +1,46 @@
 package org.hackyourlife.audio;
 
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Comparator;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 import org.hackyourlife.audio.analysis.Autoloop;
-import org.hackyourlife.audio.analysis.Frequency;
-import org.hackyourlife.audio.analysis.Loop;
-import org.hackyourlife.audio.analysis.LoopTuner;
 import org.hackyourlife.audio.analysis.MIDINames;
-import org.hackyourlife.audio.analysis.PitchEstimator;
-import org.hackyourlife.audio.analysis.SpectraLoop;
-import org.hackyourlife.audio.dsp.FFT;
-import org.hackyourlife.audio.io.riff.Riff;
-import org.hackyourlife.audio.io.riff.RiffWave;
-import org.hackyourlife.audio.io.riff.SampleChunk;
-import org.hackyourlife.audio.io.riff.SampleChunk.SampleLoop;
+import org.hackyourlife.audio.analysis.SpectrogramData;
+import org.hackyourlife.audio.dsp.Filterbank;
 
 public class AutoSample {
-	private static final double ERROR_THRESHOLD = 0.005;
+	/**
+	 * The analysis options, shared by all files of a batch.
+	 */
+	static class Settings {
+		int step = 4000;
+		int tail = 1000;
+		double weight = 1;
+		double skipSec = 0;
+		double minSec = 1;
+		int key = -1;
+
+		boolean useSpectrum = false;
+		int engine = Autoloop.DIRECT;
+		int spectrumFormat = SpectrogramData.FLOAT;
+		int bandScale = -1;
+		int bandCount = 64;
+		int levels = 0;
+		int regions = 4096;
+		// seconds per file, 0 for no limit
+		double timeLimit = 0;
+		// minimum mean square of a loop window, 0 for no loudness gate
+		double gate = 0;
+		// maximum distance of a loop end from a multiple of the period in samples, -1 to test all ends
+		int periodTolerance = -1;
+		// only evaluate loop ends whose value and slope match the start
+		boolean phaseFilter = false;
+		// test the candidates with cheap lower bounds of their error first
+		boolean cascade = false;
+		// null if the results are not cached
+		AnalysisCache cache = null;
+	}
 
 	private static void help() {
 		String helpText = "Usage: Autoloop OPTIONS...\n" +
@@ -38,10 +54,36 @@ public class AutoSample {
 				"               [default: 1.0, meaning only quality is relevant]\n" +
 				" -p 2          Number of concurrent threads for analysis [default: 2]\n" +
 				" -o out.wav    Output file (trimmed + embedded loop points)\n" +
+				"               [with -d: output directory]\n" +
 				" -k c#4        Root key (name) to embed in the output file [conflicts with -n]\n" +
 				" -n 60         Root key (MIDI number) to embed in the output file\n" +
 				"               [conflicts with -k; automatically estimated if no key is given]\n" +
 				" -a            Use advanced analysis to detect long repeating patterns\n" +
+				" -e direct     Search engine: direct, bounded, fft, simd or diagonal [default: direct]\n" +
+				" -q float      Spectrogram storage for advanced analysis: float, 16 or 8\n" +
+				"               [default: float; 16/8 use log-quantized magnitudes]\n" +
+				" -b mel:64     Reduce the spectrogram of advanced analysis to n mel or bark bands\n" +
+				"               (mel, bark, mel:n or bark:n with 32-128 bands) [default: none]\n" +
+				" -y 3          Coarse-to-fine search on n levels decimated by 2, 4, 8, ...\n" +
+				"               [default: 0, meaning full search]\n" +
+				" -r 4096       Candidate regions refined per level of the coarse-to-fine search;\n" +
+				"               more regions make missing the best loops less likely [default: 4096]\n" +
+				" -l 60         Time limit for the loop search of a file in seconds; when it is\n" +
+				"               reached, the best loops found so far are used [default: none]\n" +
+				" -g -60        Loudness gate in dB below the peak: loop windows quieter than this\n" +
+				"               are not considered [default: none; normal mode without -y only]\n" +
+				" -P 4          Only test loop lengths within n samples of a multiple of the period\n" +
+				"               of pitched input [default: off; normal mode without -y only]\n" +
+				" -z            Only test loop ends whose sample values and slopes match the loop\n" +
+				"               start [not with -y or -P]\n" +
+				" -x            Reject candidates with cheap lower bounds of their error before\n" +
+				"               comparing them [bounded and simd only; same results]\n" +
+				" -c cache/     Cache the loop candidates, spectrograms and root keys in a directory;\n" +
+				"               reruns with other -w, -k/-n or -o options skip the analysis\n" +
+				" -d samples/   Batch mode: loop all wav files of a directory, a glob pattern\n" +
+				"               (\"samples/*.wav\") or a manifest file (one path per line)\n" +
+				" -R report.csv Batch mode: write the results and timings per file to a CSV\n" +
+				"               file, or a JSON file if the name ends with .json\n" +
 				"\n" +
 				"In normal mode, -t many samples are checked for equality after the loop point.\n" +
 				"This typically works fine for simple sounds, but it fails to capture longer\n" +
@@ -59,18 +101,12 @@ public class AutoSample {
 			return;
 		}
 
+		String infileName = null;
 		String outfileName = null;
-		RiffWave wav = null;
-		int step = 4000;
-		int tail = 1000;
-		double weight = 1;
-		double skipSec = 0;
-		double minSec = 1;
-
+		String batchInput = null;
+		String reportName = null;
 		int threadcnt = 2;
-		int key = -1;
-
-		boolean useSpectrum = false;
+		Settings settings = new Settings();
 
 		for(int i = 0; i < args.length; i++) {
 			switch(args[i]) {
@@ -84,7 +120,23 @@ public class AutoSample {
 					System.out.println("Error: missing argument");
 					return;
 				}
-				wav = loadWaveFile(args[i]);
+				infileName = args[i];
+				break;
+			case "-d":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				batchInput = args[i];
+				break;
+			case "-R":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				reportName = args[i];
 				break;
 			case "-i":
 				i++;
@@ -92,7 +144,7 @@ public class AutoSample {
 					System.out.println("Error: missing argument");
 					return;
 				}
-				skipSec = Double.parseDouble(args[i]);
+				settings.skipSec = Double.parseDouble(args[i]);
 				break;
 			case "-s":
 				i++;
@@ -100,7 +152,7 @@ public class AutoSample {
 					System.out.println("Error: missing argument");
 					return;
 				}
-				step = Integer.parseInt(args[i]);
+				settings.step = Integer.parseInt(args[i]);
 				break;
 			case "-m":
 				i++;
@@ -108,7 +160,7 @@ public class AutoSample {
 					System.out.println("Error: missing argument");
 					return;
 				}
-				minSec = Double.parseDouble(args[i]);
+				settings.minSec = Double.parseDouble(args[i]);
 				break;
 			case "-t":
 				i++;
@@ -116,7 +168,7 @@ public class AutoSample {
 					System.out.println("Error: missing argument");
 					return;
 				}
-				tail = Integer.parseInt(args[i]);
+				settings.tail = Integer.parseInt(args[i]);
 				break;
 			case "-w":
 				i++;
@@ -124,7 +176,7 @@ public class AutoSample {
 					System.out.println("Error: missing argument");
 					return;
 				}
-				weight = Double.parseDouble(args[i]);
+				settings.weight = Double.parseDouble(args[i]);
 				break;
 			case "-p":
 				i++;
@@ -148,7 +200,7 @@ public class AutoSample {
 					System.out.println("Error: missing argument");
 					return;
 				}
-				key = MIDINames.getNoteNumber(args[i]);
+				settings.key = MIDINames.getNoteNumber(args[i]);
 				break;
 			case "-n":
 				i++;
@@ -156,159 +208,196 @@ public class AutoSample {
 					System.out.println("Error: missing argument");
 					return;
 				}
-				key = Integer.parseInt(args[i]);
+				settings.key = Integer.parseInt(args[i]);
 				break;
 			case "-a":
-				useSpectrum = true;
+				settings.useSpectrum = true;
+				break;
+			case "-z":
+				settings.phaseFilter = true;
+				break;
+			case "-x":
+				settings.cascade = true;
 				break;
+			case "-e":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				switch(args[i]) {
+				case "direct":
+					settings.engine = Autoloop.DIRECT;
+					break;
+				case "bounded":
+					settings.engine = Autoloop.BOUNDED;
+					break;
+				case "fft":
+					settings.engine = Autoloop.CORRELATION;
+					break;
+				case "simd":
+					settings.engine = Autoloop.VECTOR;
+					break;
+				case "diagonal":
+					settings.engine = Autoloop.DIAGONAL;
+					break;
+				default:
+					System.out.println("Error: unknown engine " + args[i]);
+					return;
+				}
+				break;
+			case "-q":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				switch(args[i]) {
+				case "float":
+					settings.spectrumFormat = SpectrogramData.FLOAT;
+					break;
+				case "16":
+					settings.spectrumFormat = SpectrogramData.LOG16;
+					break;
+				case "8":
+					settings.spectrumFormat = SpectrogramData.LOG8;
+					break;
+				default:
+					System.out.println("Error: unknown spectrogram storage " + args[i]);
+					return;
+				}
+				break;
+			case "-y":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				settings.levels = Integer.parseInt(args[i]);
+				break;
+			case "-r":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				settings.regions = Integer.parseInt(args[i]);
+				break;
+			case "-g": {
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				double db = Double.parseDouble(args[i]);
+				if(db > 0) {
+					System.out.println("Error: the loudness gate must not be above the peak (0 dB)");
+					return;
+				}
+				settings.gate = Math.pow(10, db / 10);
+				break;
+			}
+			case "-P":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				settings.periodTolerance = Integer.parseInt(args[i]);
+				if(settings.periodTolerance < 0) {
+					System.out.println("Error: negative period tolerance");
+					return;
+				}
+				break;
+			case "-c":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				settings.cache = new AnalysisCache(Paths.get(args[i]));
+				break;
+			case "-l":
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				settings.timeLimit = Double.parseDouble(args[i]);
+				if(settings.timeLimit < 0) {
+					System.out.println("Error: negative time limit");
+					return;
+				}
+				break;
+			case "-b": {
+				i++;
+				if(i >= args.length) {
+					System.out.println("Error: missing argument");
+					return;
+				}
+				String[] parts = args[i].split(":", 2);
+				switch(parts[0]) {
+				case "none":
+					settings.bandScale = -1;
+					break;
+				case "mel":
+					settings.bandScale = Filterbank.MEL;
+					break;
+				case "bark":
+					settings.bandScale = Filterbank.BARK;
+					break;
+				default:
+					System.out.println("Error: unknown band scale " + parts[0]);
+					return;
+				}
+				if(parts.length > 1) {
+					settings.bandCount = Integer.parseInt(parts[1]);
+					if(settings.bandCount < 32 || settings.bandCount > 128) {
+						System.out.println("Error: number of bands must be between 32 and 128");
+						return;
+					}
+				}
+				break;
+			}
 			default:
 				System.out.println("Unknown option (arg " + (i + 1) + "): " + args[i]);
 				return;
 			}
 		}
 
-		if(wav == null) {
-			System.out.println("Error: missing input file");
+		if(batchInput != null) {
+			if(infileName != null) {
+				System.out.println("Error: -f and -d cannot be combined");
+				return;
+			}
+			Path outdir = outfileName == null ? null : Paths.get(outfileName);
+			Path report = reportName == null ? null : Paths.get(reportName);
+			if(!Batch.run(batchInput, outdir, report, settings, threadcnt)) {
+				System.exit(1);
+			}
 			return;
 		}
 
-		int sampleRate = wav.getSampleRate();
-		int skip = (int) (sampleRate * skipSec);
-		int minlen = (int) (sampleRate * minSec);
-
-		int[][] samples = wav.getSamples();
-		float[][] normalized = Normalizer.normalize(samples);
-
-		if(samples.length == 1) {
-			System.out.printf("%d channel, %d samples\n", samples.length, samples[0].length);
-		} else {
-			System.out.printf("%d channels, %d samples\n", samples.length, samples[0].length);
+		if(infileName == null) {
+			System.out.println("Error: missing input file");
+			return;
 		}
 
-		Loop[] loops;
-		int loopcnt = 10;
-
-		if(useSpectrum) {
-			int fftSize = 2048;
-			int windowSize = fftSize / 2;
-			int stepSize = fftSize / 16;
-			int tailLength = 1024; // roughly 2.5s at 48000Hz
-			int minLength = (int) (minSec * sampleRate / stepSize);
-			int loopskip = (int) (skipSec * sampleRate / stepSize);
-			System.out.println("Using loop step size " + step + ", fft step size " + stepSize);
-			System.out.print("Pass 1...");
-			Loop[] structuralLoops = SpectraLoop.loop(normalized, loopskip, step, minLength, tailLength,
-					loopcnt, fftSize, stepSize, FFT.HAMMING, windowSize, threadcnt);
-			System.out.println(" done");
-
-			if(structuralLoops == null || structuralLoops.length == 0) {
+		Path outfile = outfileName == null ? null : Paths.get(outfileName);
+		LoopJob job = new LoopJob(Paths.get(infileName), outfile, settings, System.out);
+		try {
+			job.decode();
+			if(!job.search(threadcnt)) {
 				System.out.println("failed to find loop");
 				System.exit(1);
 			}
-
-			System.out.printf("Best loop from pass 1: %s-%s [%1.2f sec, error=%f]\n",
-					structuralLoops[0].start, structuralLoops[0].end,
-					structuralLoops[0].length / (double) sampleRate,
-					structuralLoops[0].error);
-			System.out.printf("Pass 2...");
-			loops = LoopTuner.loop(normalized, stepSize, tail, loopcnt, structuralLoops, threadcnt);
-			System.out.println(" done");
-		} else {
-			loops = Autoloop.loop(normalized, skip, step, minlen, tail, loopcnt, threadcnt);
-		}
-
-		if(loops == null) {
-			System.out.println("failed to find loop");
-			System.exit(1);
-		}
-
-		// filter and sort loops
-		int nch = samples.length;
-		int length = samples[0].length;
-
-		final double _weight = weight;
-		Comparator<Loop> comparator = (a, b) -> {
-			double lenA = a.length / (double) length;
-			double lenB = b.length / (double) length;
-
-			double lenScoreA = 1.0 - lenA;
-			double lenScoreB = 1.0 - lenB;
-
-			double scoreA = a.error * _weight + lenScoreA * (1 - _weight);
-			double scoreB = b.error * _weight + lenScoreB * (1 - _weight);
-
-			return Double.compare(scoreA, scoreB);
-		};
-
-		final int _tail = tail;
-		List<Loop> result = Stream.of(loops).filter(x -> x.error / _tail < ERROR_THRESHOLD).sorted(comparator)
-				.collect(Collectors.toList());
-
-		if(result.isEmpty()) {
-			System.out.println("WARNING: SUBOPTIMAL LOOP!");
-		}
-
-		result = Stream.of(loops).sorted(comparator).collect(Collectors.toList());
-
-		// print results
-		result.stream().forEach(loop -> {
-			double duration = (loop.end - loop.start) / (double) sampleRate;
-			System.out.printf("loop: %d - %d [%1.2f sec, error=%s]\n", loop.start, loop.end,
-					duration, loop.error / _tail);
-		});
-
-		if(!result.isEmpty() && outfileName != null) {
-			int xfadelen = tail / 2;
-
-			Loop loop = result.get(0);
-			int[][] trimmed = new int[nch][loop.end + 1];
-			if(loop.start - xfadelen >= 0) {
-				int[][] xfade = new int[nch][xfadelen];
-				for(int ch = 0; ch < nch; ch++) {
-					System.arraycopy(samples[ch], 0, trimmed[ch], 0, trimmed[ch].length);
-					System.arraycopy(samples[ch], loop.start - xfadelen, xfade[ch], 0, xfadelen);
-				}
-
-				CrossFader.crossfade(trimmed, xfade, loop.end - xfadelen);
-			} else {
-				System.out.println("crossfade is not possible");
-				for(int ch = 0; ch < nch; ch++) {
-					System.arraycopy(samples[ch], 0, trimmed[ch], 0, trimmed[ch].length);
-				}
-			}
-
-			int note = key;
-			if(note == -1) {
-				System.out.print("Estimating root key...");
-				double freq = PitchEstimator.estimate(normalized, sampleRate);
-				note = (int) Math.round(Frequency.freqToMIDInote(freq));
-				System.out.println(" done");
+			job.printLoops();
+			if(outfile != null) {
+				job.estimatePitch();
+				job.write();
 			}
-
-			if(note < 0 || note > 127) {
-				System.out.println("WARNING: invalid root key");
-				note = 0;
-			} else {
-				System.out.println("root key: " + MIDINames.getNoteName(note) + " [" + note + "]");
-			}
-
-			wav.setSamples(trimmed);
-			SampleChunk smpl = new SampleChunk();
-			smpl.setMidiUnityNote(note);
-			smpl.setMidiPitchFraction(0);
-			smpl.setSamplePeriod(1_000_000_000 / sampleRate);
-			smpl.addSampleLoop(new SampleLoop(0, SampleLoop.LOOP_FORWARD, loop.start, loop.end - 1, 0, 0));
-			wav.set(smpl);
-
-			try(OutputStream out = new FileOutputStream(outfileName)) {
-				wav.write(out);
-			}
-		}
-	}
-
-	private static RiffWave loadWaveFile(String filename) throws IOException {
-		try(InputStream in = new FileInputStream(filename)) {
-			return Riff.read(in);
+		} finally {
+			job.close();
 		}
 	}
 }
@@ -0,0 +1,381 @@
+package org.hackyourlife.audio;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hackyourlife.audio.analysis.Loop;
+import org.hackyourlife.audio.analysis.MIDINames;
+
+/**
+ * Loops many files in one run. The input is a directory (searched recursively for wav files), a glob pattern or a
+ * manifest file with one path per line. Every file goes through the stages of a {@link LoopJob}; each stage is a
+ * separate task on one executor with -p threads, so decoding, searching and writing of different files overlap.
+ * At most two files per thread are in flight at any time, which bounds the memory.
+ *
+ * The results and the time of every stage are written to a CSV or JSON report.
+ */
+public class Batch {
+	private static final int FILES_PER_THREAD = 2;
+
+	private static final String[] COLUMNS = { "file", "output", "status", "channels", "sample_rate", "samples",
+			"loop_start", "loop_end", "loop_seconds", "loop_error", "suboptimal", "partial", "cached",
+			"root_key", "decode_ms", "search_ms", "pitch_ms", "write_ms", "message" };
+
+	private static class Entry {
+		final LoopJob job;
+		volatile String error;
+
+		Entry(LoopJob job) {
+			this.job = job;
+		}
+	}
+
+	private interface Stage {
+		void run() throws Exception;
+	}
+
+	/**
+	 * Loops all files of the input.
+	 *
+	 * @param outdir
+	 *                directory for the looped files, or null to only analyze the files
+	 * @param report
+	 *                the report file (.json for JSON, CSV otherwise), or null for no report
+	 * @return true if all files were looped successfully
+	 */
+	public static boolean run(String input, Path outdir, Path report, AutoSample.Settings settings, int threadcnt)
+			throws IOException, InterruptedException {
+		List<Entry> entries = new ArrayList<>();
+		Path base = resolve(input, entries, outdir, settings);
+		if(entries.isEmpty()) {
+			System.out.println("Error: no input files found");
+			return false;
+		}
+		System.out.println(entries.size() + " files in " + base.toAbsolutePath());
+
+		// with fewer files than threads, the remaining threads are used by the search itself
+		int searchThreads = Math.max(1, threadcnt / entries.size());
+		int total = entries.size();
+		AtomicInteger done = new AtomicInteger();
+		Semaphore inflight = new Semaphore(FILES_PER_THREAD * threadcnt);
+		ExecutorService executor = Executors.newFixedThreadPool(threadcnt);
+		long t0 = System.nanoTime();
+
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		try {
+			for(Entry entry : entries) {
+				LoopJob job = entry.job;
+				inflight.acquire();
+				CompletableFuture<Void> future = CompletableFuture
+						.runAsync(stage(entry, job::decode), executor)
+						.thenRunAsync(stage(entry, () -> {
+							if(!job.search(searchThreads)) {
+								entry.error = "failed to find loop";
+							}
+						}), executor)
+						.thenRunAsync(stage(entry, job::estimatePitch), executor)
+						.thenRunAsync(stage(entry, () -> {
+							if(job.getOutput() != null) {
+								Path parent = job.getOutput().toAbsolutePath().getParent();
+								Files.createDirectories(parent);
+								job.write();
+							}
+						}), executor)
+						.handle((result, e) -> {
+							if(e != null && entry.error == null) {
+								entry.error = e.toString();
+							}
+							try {
+								job.close();
+							} catch(IOException ex) {
+								// nothing was written, ignore
+							}
+							inflight.release();
+							progress(entry, done.incrementAndGet(), total, base);
+							return null;
+						});
+				futures.add(future);
+			}
+			CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+		} finally {
+			executor.shutdown();
+		}
+
+		long elapsed = System.nanoTime() - t0;
+		int failed = (int) entries.stream().filter(e -> e.error != null).count();
+		System.out.printf("%d files looped, %d failed [%1.2f sec]\n", total - failed, failed, elapsed / 1e9);
+
+		if(report != null) {
+			if(report.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".json")) {
+				writeJSON(report, entries);
+			} else {
+				writeCSV(report, entries);
+			}
+		}
+		return failed == 0;
+	}
+
+	private static Runnable stage(Entry entry, Stage stage) {
+		return () -> {
+			if(entry.error != null) {
+				return;
+			}
+			try {
+				stage.run();
+			} catch(Exception e) {
+				entry.error = e.getMessage() != null ? e.getMessage() : e.toString();
+			}
+		};
+	}
+
+	private static synchronized void progress(Entry entry, int n, int total, Path base) {
+		LoopJob job = entry.job;
+		String name = relative(base, job.getInput()).toString();
+		if(entry.error != null) {
+			System.out.printf("[%d/%d] %s: FAILED: %s\n", n, total, name, entry.error);
+		} else {
+			Loop loop = job.getLoops().get(0);
+			double duration = (loop.end - loop.start) / (double) job.getSampleRate();
+			System.out.printf("[%d/%d] %s: loop %d - %d [%1.2f sec, error=%s], root key %s%s%s\n", n, total,
+					name, loop.start, loop.end, duration, loop.error / job.getTail(),
+					MIDINames.getNoteName(job.getNote()), job.isSuboptimal() ? " (SUBOPTIMAL)" : "",
+					job.isPartial() ? " (time limit)" : "");
+		}
+	}
+
+	/**
+	 * Collects the input files and returns the directory the output paths are relative to.
+	 */
+	private static Path resolve(String input, List<Entry> entries, Path outdir, AutoSample.Settings settings)
+			throws IOException {
+		Path base;
+		List<Path> files;
+		if(isGlob(input)) {
+			// the directory part before the first wildcard is searched for matching files
+			int wildcard = firstWildcard(input);
+			int sep = Math.max(input.lastIndexOf('/', wildcard), input.lastIndexOf('\\', wildcard));
+			base = sep < 0 ? Paths.get("") : Paths.get(input.substring(0, sep + 1));
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(sep + 1));
+			Path dir = base.toAbsolutePath();
+			try(Stream<Path> paths = Files.walk(dir)) {
+				files = paths.filter(Files::isRegularFile).filter(p -> matcher.matches(dir.relativize(p)))
+						.sorted().collect(Collectors.toList());
+			}
+		} else {
+			Path path = Paths.get(input);
+			if(Files.isDirectory(path)) {
+				base = path;
+				try(Stream<Path> paths = Files.walk(path)) {
+					files = paths.filter(Files::isRegularFile).filter(Batch::isWave).sorted()
+							.collect(Collectors.toList());
+				}
+			} else if(isWave(path)) {
+				base = path.toAbsolutePath().getParent();
+				files = new ArrayList<>();
+				files.add(path);
+			} else {
+				// manifest: one file per line, relative to the manifest
+				base = path.toAbsolutePath().getParent();
+				files = new ArrayList<>();
+				for(String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+					line = line.trim();
+					if(line.isEmpty() || line.startsWith("#")) {
+						continue;
+					}
+					files.add(base.resolve(line));
+				}
+			}
+		}
+
+		for(Path file : files) {
+			Path output = null;
+			if(outdir != null) {
+				output = outdir.resolve(relative(base, file).toString());
+			}
+			entries.add(new Entry(new LoopJob(file, output, settings, null)));
+		}
+		return base;
+	}
+
+	private static boolean isWave(Path path) {
+		return path.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".wav");
+	}
+
+	private static boolean isGlob(String s) {
+		return firstWildcard(s) < s.length();
+	}
+
+	private static int firstWildcard(String s) {
+		for(int i = 0; i < s.length(); i++) {
+			switch(s.charAt(i)) {
+			case '*':
+			case '?':
+			case '[':
+			case '{':
+				return i;
+			}
+		}
+		return s.length();
+	}
+
+	/**
+	 * Returns the path of the file relative to base, or only its name if it is not inside base.
+	 */
+	private static Path relative(Path base, Path file) {
+		Path dir = base.toAbsolutePath().normalize();
+		Path path = file.toAbsolutePath().normalize();
+		if(path.startsWith(dir)) {
+			return dir.relativize(path);
+		} else {
+			return path.getFileName();
+		}
+	}
+
+	/**
+	 * Returns the report columns of an entry; numbers are returned as Number, missing values as null.
+	 */
+	private static Object[] row(Entry entry) {
+		LoopJob job = entry.job;
+		Object[] row = new Object[COLUMNS.length];
+		row[0] = job.getInput().toString();
+		row[1] = job.getOutput() == null || entry.error != null ? null : job.getOutput().toString();
+		row[2] = entry.error == null ? "ok" : "failed";
+		if(job.getLength() > 0) {
+			row[3] = job.getChannels();
+			row[4] = job.getSampleRate();
+			row[5] = job.getLength();
+		}
+		List<Loop> loops = job.getLoops();
+		if(loops != null && !loops.isEmpty()) {
+			Loop loop = loops.get(0);
+			row[6] = loop.start;
+			row[7] = loop.end;
+			row[8] = (loop.end - loop.start) / (double) job.getSampleRate();
+			row[9] = loop.error / (double) job.getTail();
+			row[10] = job.isSuboptimal();
+			row[11] = job.isPartial();
+			row[12] = job.isCached();
+		}
+		if(job.getNote() != -1) {
+			row[13] = job.getNote();
+		}
+		row[14] = job.getDecodeTime() / 1e6;
+		row[15] = job.getSearchTime() / 1e6;
+		row[16] = job.getPitchTime() / 1e6;
+		row[17] = job.getWriteTime() / 1e6;
+		row[18] = entry.error;
+		return row;
+	}
+
+	private static String format(Object value) {
+		if(value instanceof Double) {
+			return String.format(Locale.ROOT, "%.6g", (Double) value);
+		} else {
+			return value.toString();
+		}
+	}
+
+	private static void writeCSV(Path file, List<Entry> entries) throws IOException {
+		try(BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+				PrintWriter csv = new PrintWriter(out)) {
+			csv.println(String.join(",", COLUMNS));
+			for(Entry entry : entries) {
+				Object[] row = row(entry);
+				StringBuilder line = new StringBuilder();
+				for(int i = 0; i < row.length; i++) {
+					if(i > 0) {
+						line.append(',');
+					}
+					if(row[i] instanceof String) {
+						line.append(quoteCSV((String) row[i]));
+					} else if(row[i] != null) {
+						line.append(format(row[i]));
+					}
+				}
+				csv.println(line);
+			}
+		}
+	}
+
+	private static String quoteCSV(String s) {
+		if(s.indexOf(',') == -1 && s.indexOf('"') == -1 && s.indexOf('\n') == -1 && s.indexOf('\r') == -1) {
+			return s;
+		}
+		return '"' + s.replace("\"", "\"\"") + '"';
+	}
+
+	private static void writeJSON(Path file, List<Entry> entries) throws IOException {
+		try(BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+				PrintWriter json = new PrintWriter(out)) {
+			json.println("[");
+			for(int n = 0; n < entries.size(); n++) {
+				Object[] row = row(entries.get(n));
+				StringBuilder line = new StringBuilder("\t{ ");
+				for(int i = 0; i < row.length; i++) {
+					if(i > 0) {
+						line.append(", ");
+					}
+					line.append('"').append(COLUMNS[i]).append("\": ");
+					if(row[i] instanceof String) {
+						line.append(quoteJSON((String) row[i]));
+					} else if(row[i] == null) {
+						line.append("null");
+					} else {
+						line.append(format(row[i]));
+					}
+				}
+				line.append(n + 1 < entries.size() ? " }," : " }");
+				json.println(line);
+			}
+			json.println("]");
+		}
+	}
+
+	private static String quoteJSON(String s) {
+		StringBuilder b = new StringBuilder("\"");
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch(c) {
+			case '"':
+				b.append("\\\"");
+				break;
+			case '\\':
+				b.append("\\\\");
+				break;
+			case '\n':
+				b.append("\\n");
+				break;
+			case '\r':
+				b.append("\\r");
+				break;
+			case '\t':
+				b.append("\\t");
+				break;
+			default:
+				if(c < 0x20) {
+					b.append(String.format("\\u%04x", (int) c));
+				} else {
+					b.append(c);
+				}
+			}
+		}
+		return b.append('"').toString();
+	}
+}
@@ -0,0 +1,485 @@
+package org.hackyourlife.audio;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hackyourlife.audio.analysis.Autoloop;
+import org.hackyourlife.audio.analysis.ErrorKernel;
+import org.hackyourlife.audio.analysis.Frequency;
+import org.hackyourlife.audio.analysis.Loop;
+import org.hackyourlife.audio.analysis.LoopSearch;
+import org.hackyourlife.audio.analysis.LoopTuner;
+import org.hackyourlife.audio.analysis.MIDINames;
+import org.hackyourlife.audio.analysis.PitchEstimator;
+import org.hackyourlife.audio.analysis.PeriodicLoop;
+import org.hackyourlife.audio.analysis.PhaseIndex;
+import org.hackyourlife.audio.analysis.Pyramid;
+import org.hackyourlife.audio.analysis.SearchStatistics;
+import org.hackyourlife.audio.analysis.SpectraLoop;
+import org.hackyourlife.audio.analysis.Spectrogram;
+import org.hackyourlife.audio.analysis.SpectrogramData;
+import org.hackyourlife.audio.dsp.FFT;
+import org.hackyourlife.audio.dsp.Filterbank;
+import org.hackyourlife.audio.io.riff.MappedRiffWave;
+import org.hackyourlife.audio.io.riff.RiffWave;
+import org.hackyourlife.audio.io.riff.SampleChunk;
+import org.hackyourlife.audio.io.riff.SampleChunk.SampleLoop;
+import org.hackyourlife.audio.io.riff.WaveWriter;
+
+/**
+ * Loops one file: decoding, loop search, root key estimation and writing. The stages are separate methods, so
+ * {@link AutoSample} can run them one after another for a single file and {@link Batch} can run the stages of
+ * different files concurrently. Progress messages are printed to the given stream, or not at all if it is null.
+ */
+public class LoopJob {
+	private static final double ERROR_THRESHOLD = 0.005;
+
+	private final Path input;
+	private final Path output;
+	private final AutoSample.Settings settings;
+	private final PrintStream log;
+
+	private MappedRiffWave wav;
+	private AudioBuffer normalized;
+	private int sampleRate;
+	private int channels;
+	private int length;
+
+	private final SearchStatistics stats = new SearchStatistics();
+	private List<Loop> loops;
+	private boolean suboptimal;
+	private boolean partial;
+	private boolean cached;
+	// hash of the audio data for the cache keys
+	private String hash;
+	private int note = -1;
+
+	// nanoseconds
+	private long decodeTime;
+	private long searchTime;
+	private long pitchTime;
+	private long writeTime;
+
+	public LoopJob(Path input, Path output, AutoSample.Settings settings, PrintStream log) {
+		this.input = input;
+		this.output = output;
+		this.settings = settings;
+		this.log = log;
+	}
+
+	private void print(String s) {
+		if(log != null) {
+			log.print(s);
+		}
+	}
+
+	private void println(String s) {
+		if(log != null) {
+			log.println(s);
+		}
+	}
+
+	private void printf(String format, Object... args) {
+		if(log != null) {
+			log.printf(format, args);
+		}
+	}
+
+	public Path getInput() {
+		return input;
+	}
+
+	public Path getOutput() {
+		return output;
+	}
+
+	/**
+	 * Maps the input file and normalizes the samples.
+	 */
+	public void decode() throws IOException {
+		long t0 = System.nanoTime();
+		wav = MappedRiffWave.open(input);
+		sampleRate = wav.getSampleRate();
+		channels = wav.getChannels();
+		length = wav.getFrameCount();
+		normalized = Normalizer.normalize(wav, AudioBuffer.INTERLEAVED);
+		if(settings.cache != null) {
+			hash = AnalysisCache.hash(wav);
+		}
+		decodeTime = System.nanoTime() - t0;
+
+		if(channels == 1) {
+			printf("%d channel, %d samples\n", channels, length);
+		} else {
+			printf("%d channels, %d samples\n", channels, length);
+		}
+	}
+
+	/**
+	 * Searches the loops, or takes them from the cache, and sorts them by score.
+	 *
+	 * @return false if no loop was found
+	 */
+	public boolean search(int threadcnt) throws InterruptedException {
+		long t0 = System.nanoTime();
+		try {
+			Loop[] result = null;
+			String key = null;
+			if(settings.cache != null) {
+				key = getLoopsKey();
+				result = settings.cache.getLoops(key);
+				if(result != null) {
+					cached = true;
+					println("Using cached loops");
+				}
+			}
+			if(result == null) {
+				result = find(threadcnt);
+				if(result == null) {
+					return false;
+				}
+				// a partial result depends on the machine and the load, it must not be reused
+				if(key != null && !partial) {
+					try {
+						settings.cache.putLoops(key, result);
+					} catch(IOException e) {
+						println("WARNING: cannot write to the cache: " + e.getMessage());
+					}
+				}
+			}
+			sort(result);
+			return true;
+		} finally {
+			searchTime = System.nanoTime() - t0;
+		}
+	}
+
+	/**
+	 * Returns the cache key of the search result: the audio data and the options the result depends on.
+	 */
+	private String getLoopsKey() {
+		AutoSample.Settings s = settings;
+		// bounded gives the same results as direct; the tuner treats fft and diagonal like direct; the pyramid
+		// ignores the engine
+		int engine = s.engine;
+		if(engine == Autoloop.BOUNDED ||
+				(s.useSpectrum && (engine == Autoloop.CORRELATION || engine == Autoloop.DIAGONAL))) {
+			engine = Autoloop.DIRECT;
+		}
+		if(s.useSpectrum) {
+			return AnalysisCache.key(hash, "loops", "spectrum", s.skipSec, s.minSec, s.step, s.tail, engine,
+					s.spectrumFormat, s.bandScale, s.bandScale >= 0 ? s.bandCount : 0, s.phaseFilter);
+		} else if(s.levels > 0) {
+			return AnalysisCache.key(hash, "loops", "pyramid", s.skipSec, s.minSec, s.step, s.tail, s.levels,
+					s.regions);
+		} else {
+			return AnalysisCache.key(hash, "loops", "full", s.skipSec, s.minSec, s.step, s.tail, engine, s.gate,
+					s.periodTolerance, s.periodTolerance < 0 && s.phaseFilter);
+		}
+	}
+
+	private Loop[] find(int threadcnt) throws InterruptedException {
+		AutoSample.Settings s = settings;
+		int skip = (int) (sampleRate * s.skipSec);
+		int minlen = (int) (sampleRate * s.minSec);
+		int loopcnt = 10;
+
+		LoopSearch control = null;
+		if(s.timeLimit > 0) {
+			control = new LoopSearch().setTimeLimit((long) (s.timeLimit * 1e9), TimeUnit.NANOSECONDS);
+		}
+
+		if(s.engine == Autoloop.VECTOR && (s.useSpectrum || s.levels == 0)) {
+			println("Using " + ErrorKernel.getName() + " kernels");
+		}
+
+		Loop[] result;
+		if(s.useSpectrum) {
+			int fftSize = 2048;
+			int windowSize = fftSize / 2;
+			int stepSize = fftSize / 16;
+			int tailLength = 1024; // roughly 2.5s at 48000Hz
+			int minLength = (int) (s.minSec * sampleRate / stepSize);
+			int loopskip = (int) (s.skipSec * sampleRate / stepSize);
+			println("Using loop step size " + s.step + ", fft step size " + stepSize);
+			Filterbank filterbank = null;
+			if(s.bandScale >= 0) {
+				filterbank = new Filterbank(s.bandScale, s.bandCount, fftSize, sampleRate);
+				println("Using " + s.bandCount + (s.bandScale == Filterbank.MEL ? " mel" : " bark") + " bands");
+			}
+			print("Pass 1...");
+			SpectrogramData fft = null;
+			String key = null;
+			if(s.cache != null) {
+				key = AnalysisCache.key(hash, "spectrogram", fftSize, stepSize, FFT.HAMMING, windowSize,
+						s.spectrumFormat, s.bandScale, s.bandScale >= 0 ? s.bandCount : 0);
+				fft = s.cache.getSpectrogram(key);
+			}
+			if(fft == null) {
+				fft = Spectrogram.spectrogram(normalized, fftSize, stepSize, FFT.HAMMING, windowSize, threadcnt,
+						s.spectrumFormat, filterbank);
+				if(key != null) {
+					try {
+						s.cache.putSpectrogram(key, fft);
+					} catch(IOException e) {
+						println("WARNING: cannot write to the cache: " + e.getMessage());
+					}
+				}
+			}
+			Loop[] structuralLoops = SpectraLoop.loop(fft, loopskip, s.step, minLength, tailLength, loopcnt,
+					stepSize, threadcnt, s.engine, control);
+			println(" done");
+
+			if(structuralLoops == null || structuralLoops.length == 0) {
+				return null;
+			}
+
+			printf("Best loop from pass 1: %s-%s [%1.2f sec, error=%f]\n",
+					structuralLoops[0].start, structuralLoops[0].end,
+					structuralLoops[0].length / (double) sampleRate,
+					structuralLoops[0].error);
+			print("Pass 2...");
+			PhaseIndex phase = s.phaseFilter ? new PhaseIndex(normalized) : null;
+			result = LoopTuner.loop(normalized, stepSize, s.tail, loopcnt, structuralLoops, threadcnt, s.engine,
+					phase, s.cascade, stats, control);
+			println(" done");
+		} else if(s.levels > 0) {
+			println("Using " + s.levels + " pyramid levels, " + s.regions + " regions per level");
+			result = Pyramid.loop(normalized, skip, s.step, minlen, s.tail, loopcnt, threadcnt, s.levels,
+					s.regions, stats, control);
+		} else if(s.periodTolerance >= 0) {
+			double period = PeriodicLoop.period(normalized, skip);
+			if(period > 0) {
+				printf("Using period %1.3f samples (%1.2f Hz), tolerance %d samples\n", period, sampleRate / period,
+						s.periodTolerance);
+			} else {
+				println("No clear period found, searching all loop lengths");
+			}
+			result = PeriodicLoop.loop(normalized, skip, s.step, minlen, s.tail, loopcnt, threadcnt, s.engine,
+					period, s.periodTolerance, s.gate, stats, control);
+		} else {
+			PhaseIndex phase = s.phaseFilter ? new PhaseIndex(normalized) : null;
+			result = Autoloop.loop(normalized, skip, s.step, minlen, s.tail, loopcnt, threadcnt, s.engine, s.gate,
+					phase, s.cascade, stats, control);
+		}
+
+		if(control != null && control.isStopped()) {
+			partial = true;
+			println("Time limit reached, using the best loops found so far");
+		}
+
+		if(s.engine == Autoloop.BOUNDED || s.engine == Autoloop.VECTOR || (s.phaseFilter && s.levels == 0) ||
+				(!s.useSpectrum && (s.levels > 0 || s.gate > 0 || s.periodTolerance >= 0 ||
+						s.engine == Autoloop.DIAGONAL))) {
+			println("Pruning: " + stats);
+		}
+		return result;
+	}
+
+	// filter and sort loops
+	private void sort(Loop[] result) {
+		double weight = settings.weight;
+		Comparator<Loop> comparator = (a, b) -> {
+			double lenA = a.length / (double) length;
+			double lenB = b.length / (double) length;
+
+			double lenScoreA = 1.0 - lenA;
+			double lenScoreB = 1.0 - lenB;
+
+			double scoreA = a.error * weight + lenScoreA * (1 - weight);
+			double scoreB = b.error * weight + lenScoreB * (1 - weight);
+
+			return Double.compare(scoreA, scoreB);
+		};
+
+		int tail = settings.tail;
+		suboptimal = Stream.of(result).noneMatch(x -> x.error / tail < ERROR_THRESHOLD);
+		loops = Stream.of(result).sorted(comparator).collect(Collectors.toList());
+	}
+
+	public void printLoops() {
+		if(suboptimal) {
+			println("WARNING: SUBOPTIMAL LOOP!");
+		}
+
+		// print results
+		for(Loop loop : loops) {
+			double duration = (loop.end - loop.start) / (double) sampleRate;
+			printf("loop: %d - %d [%1.2f sec, error=%s]\n", loop.start, loop.end, duration,
+					loop.error / settings.tail);
+		}
+	}
+
+	/**
+	 * Determines the root key: the one from the settings, or the estimated one.
+	 */
+	public void estimatePitch() {
+		long t0 = System.nanoTime();
+		note = settings.key;
+		if(note == -1) {
+			print("Estimating root key...");
+			double freq = Double.NaN;
+			String key = null;
+			if(settings.cache != null) {
+				key = AnalysisCache.key(hash, "pitch");
+				freq = settings.cache.getPitch(key);
+			}
+			if(Double.isNaN(freq)) {
+				freq = PitchEstimator.estimate(normalized, sampleRate);
+				if(key != null) {
+					try {
+						settings.cache.putPitch(key, freq);
+					} catch(IOException e) {
+						println("WARNING: cannot write to the cache: " + e.getMessage());
+					}
+				}
+			}
+			note = (int) Math.round(Frequency.freqToMIDInote(freq));
+			println(" done");
+		}
+
+		if(note < 0 || note > 127) {
+			println("WARNING: invalid root key");
+			note = 0;
+		} else {
+			println("root key: " + MIDINames.getNoteName(note) + " [" + note + "]");
+		}
+		pitchTime = System.nanoTime() - t0;
+	}
+
+	/**
+	 * Writes the output file with the best loop, trimmed after the loop end and with a crossfade into the loop.
+	 */
+	public void write() throws IOException {
+		long t0 = System.nanoTime();
+		int xfadelen = settings.tail / 2;
+
+		Loop loop = loops.get(0);
+		// only the crossfade is re-encoded, the samples before it are copied from the input file
+		int fadeStart = loop.end + 1;
+		int[][] faded = null;
+		if(loop.start - xfadelen >= 0) {
+			fadeStart = loop.end - xfadelen;
+			faded = wav.getSamples(fadeStart, loop.end + 1 - fadeStart);
+			int[][] xfade = wav.getSamples(loop.start - xfadelen, xfadelen);
+			CrossFader.crossfade(faded, xfade, 0);
+		} else {
+			println("crossfade is not possible");
+		}
+
+		RiffWave header = wav.readHeader();
+		SampleChunk smpl = new SampleChunk();
+		smpl.setMidiUnityNote(note);
+		smpl.setMidiPitchFraction(0);
+		smpl.setSamplePeriod(1_000_000_000 / sampleRate);
+		smpl.addSampleLoop(new SampleLoop(0, SampleLoop.LOOP_FORWARD, loop.start, loop.end - 1, 0, 0));
+		header.set(smpl);
+
+		// the input file is still mapped, so it must not be overwritten while the output is written
+		boolean inPlace = Files.exists(output) && Files.isSameFile(output, input);
+		Path target = output;
+		if(inPlace) {
+			Path dir = output.toAbsolutePath().getParent();
+			target = Files.createTempFile(dir, "autoloop", ".wav");
+		}
+
+		try(WaveWriter out = new WaveWriter(target, header)) {
+			out.copy(wav, 0, fadeStart);
+			if(faded != null) {
+				out.write(faded, 0, faded[0].length);
+			}
+		}
+
+		if(inPlace) {
+			wav.close();
+			Files.move(target, output, StandardCopyOption.REPLACE_EXISTING);
+		}
+		writeTime = System.nanoTime() - t0;
+	}
+
+	/**
+	 * Releases the input file and the samples; the results stay available.
+	 */
+	public void close() throws IOException {
+		normalized = null;
+		if(wav != null) {
+			wav.close();
+			wav = null;
+		}
+	}
+
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the number of samples compared per candidate, the errors of the loops are sums over them.
+	 */
+	public int getTail() {
+		return settings.tail;
+	}
+
+	/**
+	 * Returns the found loops, best first, or null if the search was not run or failed.
+	 */
+	public List<Loop> getLoops() {
+		return loops;
+	}
+
+	public boolean isSuboptimal() {
+		return suboptimal;
+	}
+
+	/**
+	 * Returns true if the loops were taken from the cache.
+	 */
+	public boolean isCached() {
+		return cached;
+	}
+
+	/**
+	 * Returns true if the search hit the time limit, so the loops are the best of the candidates checked until then.
+	 */
+	public boolean isPartial() {
+		return partial;
+	}
+
+	/**
+	 * Returns the root key, or -1 if it was not determined yet.
+	 */
+	public int getNote() {
+		return note;
+	}
+
+	public long getDecodeTime() {
+		return decodeTime;
+	}
+
+	public long getSearchTime() {
+		return searchTime;
+	}
+
+	public long getPitchTime() {
+		return pitchTime;
+	}
+
+	public long getWriteTime() {
+		return writeTime;
+	}
+}
@@ -1,5 +1,7 @@
 package org.hackyourlife.audio;
 
+import org.hackyourlife.audio.io.riff.MappedRiffWave;
+
 public class Normalizer {
 	public static float[][] normalize(float[][] samples) {
 		float min = Float.MAX_VALUE;
@@ -57,6 +59,74 @@ public class Normalizer {
 		return normalized;
 	}
 
+	public static AudioBuffer normalize(int[][] samples, int layout) {
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+
+		int nch = samples.length;
+		AudioBuffer normalized = new AudioBuffer(nch, samples[0].length, layout);
+		float[] data = normalized.getData();
+
+		for(int ch = 0; ch < nch; ch++) {
+			for(int i = 0; i < samples[ch].length; i++) {
+				if(samples[ch][i] > max) {
+					max = samples[ch][i];
+				}
+				if(samples[ch][i] < min) {
+					min = samples[ch][i];
+				}
+			}
+		}
+
+		int scale = Math.max(Math.abs(min), Math.abs(max));
+
+		for(int ch = 0; ch < nch; ch++) {
+			for(int i = 0, off = normalized.offset(ch, 0); i < samples[ch].length; i++) {
+				data[off] = (float) ((double) samples[ch][i] / (double) scale);
+				off += normalized.getFrameStride();
+			}
+		}
+
+		return normalized;
+	}
+
+	/**
+	 * Normalizes the samples of a mapped file. The samples are decoded twice, once for the peak and once for the
+	 * result, so the only copy of the sample data is the returned buffer.
+	 */
+	public static AudioBuffer normalize(MappedRiffWave wav, int layout) {
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+
+		int nch = wav.getChannels();
+		int length = wav.getFrameCount();
+		AudioBuffer normalized = new AudioBuffer(nch, length, layout);
+		float[] data = normalized.getData();
+
+		for(int ch = 0; ch < nch; ch++) {
+			for(int i = 0; i < length; i++) {
+				int sample = wav.getSample(ch, i);
+				if(sample > max) {
+					max = sample;
+				}
+				if(sample < min) {
+					min = sample;
+				}
+			}
+		}
+
+		int scale = Math.max(Math.abs(min), Math.abs(max));
+
+		for(int ch = 0; ch < nch; ch++) {
+			for(int i = 0, off = normalized.offset(ch, 0); i < length; i++) {
+				data[off] = (float) ((double) wav.getSample(ch, i) / (double) scale);
+				off += normalized.getFrameStride();
+			}
+		}
+
+		return normalized;
+	}
+
 	public static double[][] normalizeF64(int[][] samples) {
 		int min = Integer.MAX_VALUE;
 		int max = Integer.MIN_VALUE;
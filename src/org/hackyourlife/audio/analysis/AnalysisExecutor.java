@@ -0,0 +1,285 @@
+package org.hackyourlife.audio.analysis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the loop searches on shared work-stealing pools. A search is a set of rows (usually one per start position)
+ * with a number of cells each (usually the end positions); since the rows of a loop search get shorter with the
+ * start position, the work is not split by rows, but into chunks of roughly the same number of cells: short rows
+ * are grouped, long rows are split. The chunks are distributed with range splitting, so idle threads steal the
+ * remaining work of busy ones instead of waiting for the slowest thread.
+ *
+ * Every chunk collects its loops in its own {@link LoopCollector}; the collectors share their threshold and are
+ * merged in the end, so the result does not depend on the chunking or the number of threads.
+ *
+ * If the calling thread is interrupted while waiting, the remaining chunks are cancelled and the search throws an
+ * {@link InterruptedException}. A search with a {@link LoopSearch} evaluates the rows in blocks and stops as soon as
+ * the LoopSearch is cancelled or out of budget, with the loops found so far as result.
+ */
+public class AnalysisExecutor {
+	/**
+	 * number of chunks per thread; more chunks balance better, fewer chunks have less overhead
+	 */
+	private static final int CHUNKS_PER_THREAD = 16;
+	/**
+	 * minimum number of cells per chunk
+	 */
+	private static final int MIN_CHUNK = 4096;
+
+	private static final Map<Integer, ForkJoinPool> pools = new HashMap<>();
+
+	/**
+	 * A search over rows of independent cells.
+	 */
+	public abstract static class RowSearch {
+		/**
+		 * Returns the number of cells of a row.
+		 */
+		public abstract int getCells(int row);
+
+		/**
+		 * Evaluates the cells [from, to) of a row. Called concurrently for different rows and cell ranges.
+		 */
+		public abstract void compute(int row, int from, int to, LoopCollector loops, SearchStatistics stats);
+	}
+
+	/**
+	 * Returns the shared pool with the given parallelism. The pools use daemon threads and are never shut down.
+	 */
+	public static synchronized ForkJoinPool getPool(int threadcnt) {
+		ForkJoinPool pool = pools.get(threadcnt);
+		if(pool == null) {
+			pool = new ForkJoinPool(threadcnt);
+			pools.put(threadcnt, pool);
+		}
+		return pool;
+	}
+
+	/**
+	 * Runs a search. With a single thread, the rows are evaluated on the calling thread.
+	 *
+	 * @param capacity
+	 *                number of loops to return
+	 * @param stats
+	 *                receives the statistics of all chunks, may be null
+	 * @return the best loops, best first, or null if no loop was found
+	 */
+	public static Loop[] run(RowSearch search, int rows, int capacity, int threadcnt, SearchStatistics stats)
+			throws InterruptedException {
+		return run(search, rows, capacity, threadcnt, stats, null);
+	}
+
+	/**
+	 * Runs a search under the control of a {@link LoopSearch}.
+	 *
+	 * @param control
+	 *                the progress and budget of the search, may be null
+	 */
+	public static Loop[] run(RowSearch search, int rows, int capacity, int threadcnt, SearchStatistics stats,
+			LoopSearch control) throws InterruptedException {
+		if(control != null) {
+			long total = 0;
+			for(int row = 0; row < rows; row++) {
+				total += search.getCells(row);
+			}
+			control.begin(total);
+		}
+		try {
+			return execute(search, rows, capacity, threadcnt, stats, control);
+		} finally {
+			if(control != null) {
+				control.end();
+			}
+		}
+	}
+
+	private static Loop[] execute(RowSearch search, int rows, int capacity, int threadcnt, SearchStatistics stats,
+			LoopSearch control) throws InterruptedException {
+		if(threadcnt <= 1) {
+			LoopCollector loops = new LoopCollector(capacity);
+			SearchStatistics local = new SearchStatistics();
+			for(int row = 0; row < rows; row++) {
+				if(Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				if(!evaluate(search, row, 0, search.getCells(row), loops, local, control)) {
+					break;
+				}
+			}
+			if(stats != null) {
+				stats.add(local);
+			}
+			return loops.size() == 0 ? null : loops.toArray();
+		}
+
+		List<int[]> chunks = split(search, rows, threadcnt);
+		LoopCollector[] loops = LoopCollector.create(Math.max(chunks.size(), 1), capacity);
+		SearchStatistics[] local = new SearchStatistics[chunks.size()];
+		for(int i = 0; i < local.length; i++) {
+			local[i] = new SearchStatistics();
+		}
+
+		Job job = new Job(search, chunks, loops, local, control, 0, chunks.size());
+		ForkJoinTask<Void> task = getPool(threadcnt).submit(job);
+		try {
+			task.get();
+		} catch(InterruptedException e) {
+			job.cancel();
+			task.cancel(true);
+			throw e;
+		} catch(CancellationException e) {
+			throw new InterruptedException("search cancelled");
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if(cause instanceof Error) {
+				throw (Error) cause;
+			} else {
+				throw new RuntimeException(cause);
+			}
+		}
+
+		if(stats != null) {
+			for(SearchStatistics s : local) {
+				stats.add(s);
+			}
+		}
+		return LoopCollector.merge(loops, capacity);
+	}
+
+	/**
+	 * Evaluates the cells [from, to) of a row, in blocks if there is a control.
+	 *
+	 * @return false if the search was stopped
+	 */
+	private static boolean evaluate(RowSearch search, int row, int from, int to, LoopCollector loops,
+			SearchStatistics stats, LoopSearch control) {
+		if(control == null) {
+			search.compute(row, from, to, loops, stats);
+			return true;
+		}
+		for(int i = from; i < to; i += LoopSearch.BLOCK_SIZE) {
+			if(control.shouldStop()) {
+				return false;
+			}
+			int n = Math.min(LoopSearch.BLOCK_SIZE, to - i);
+			search.compute(row, i, i + n, loops, stats);
+			control.progress(n, loops.best());
+		}
+		return true;
+	}
+
+	/**
+	 * Splits the rows into chunks { first row, last row, first cell, last cell } of similar size. A chunk is either
+	 * a range of complete rows (cells -1) or a cell range of a single row.
+	 */
+	private static List<int[]> split(RowSearch search, int rows, int threadcnt) {
+		long total = 0;
+		for(int row = 0; row < rows; row++) {
+			total += search.getCells(row);
+		}
+		long size = Math.max(MIN_CHUNK, total / ((long) threadcnt * CHUNKS_PER_THREAD));
+
+		List<int[]> chunks = new ArrayList<>();
+		int first = 0;
+		long cells = 0;
+		for(int row = 0; row < rows; row++) {
+			int n = search.getCells(row);
+			if(n > size) {
+				// flush the pending rows, then split the long row
+				if(first < row) {
+					chunks.add(new int[] { first, row, -1, -1 });
+				}
+				int parts = (int) ((n + size - 1) / size);
+				for(int i = 0; i < parts; i++) {
+					int from = (int) ((long) n * i / parts);
+					int to = (int) ((long) n * (i + 1) / parts);
+					chunks.add(new int[] { row, row + 1, from, to });
+				}
+				first = row + 1;
+				cells = 0;
+			} else {
+				cells += n;
+				if(cells >= size) {
+					chunks.add(new int[] { first, row + 1, -1, -1 });
+					first = row + 1;
+					cells = 0;
+				}
+			}
+		}
+		if(first < rows) {
+			chunks.add(new int[] { first, rows, -1, -1 });
+		}
+		return chunks;
+	}
+
+	private static class Job extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final RowSearch search;
+		private final List<int[]> chunks;
+		private final LoopCollector[] loops;
+		private final SearchStatistics[] stats;
+		private final LoopSearch control;
+		private final int first;
+		private final int last;
+		// shared by all parts of a job
+		private final AtomicBoolean cancelled;
+
+		Job(RowSearch search, List<int[]> chunks, LoopCollector[] loops, SearchStatistics[] stats,
+				LoopSearch control, int first, int last) {
+			this(search, chunks, loops, stats, control, first, last, new AtomicBoolean());
+		}
+
+		private Job(RowSearch search, List<int[]> chunks, LoopCollector[] loops, SearchStatistics[] stats,
+				LoopSearch control, int first, int last, AtomicBoolean cancelled) {
+			this.search = search;
+			this.chunks = chunks;
+			this.loops = loops;
+			this.stats = stats;
+			this.control = control;
+			this.first = first;
+			this.last = last;
+			this.cancelled = cancelled;
+		}
+
+		void cancel() {
+			cancelled.set(true);
+		}
+
+		@Override
+		protected void compute() {
+			if(last - first > 1) {
+				int mid = (first + last) >>> 1;
+				invokeAll(new Job(search, chunks, loops, stats, control, first, mid, cancelled),
+						new Job(search, chunks, loops, stats, control, mid, last, cancelled));
+				return;
+			}
+			if(last == first) {
+				return;
+			}
+
+			int[] chunk = chunks.get(first);
+			for(int row = chunk[0]; row < chunk[1]; row++) {
+				if(cancelled.get()) {
+					return;
+				}
+				int from = chunk[2] == -1 ? 0 : chunk[2];
+				int to = chunk[2] == -1 ? search.getCells(row) : chunk[3];
+				if(!evaluate(search, row, from, to, loops[first], stats[first], control)) {
+					return;
+				}
+			}
+		}
+	}
+}
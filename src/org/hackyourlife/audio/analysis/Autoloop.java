@@ -3,16 +3,54 @@ package org.hackyourlife.audio.analysis;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
+import org.hackyourlife.audio.AudioBuffer;
 import org.hackyourlife.audio.Normalizer;
 import org.hackyourlife.audio.io.riff.Riff;
 import org.hackyourlife.audio.io.riff.RiffWave;
 
 public class Autoloop {
+	/**
+	 * used in {@link Autoloop#loop(float[][], int, int, int, int, int, int, int)} to evaluate every candidate
+	 * with {@link Autoloop#estimate(AudioBuffer, int, int, int)}; without loudness gate and phase filter, the
+	 * candidates are evaluated in tiles of starts and ends
+	 */
+	public static final int DIRECT = 0;
+	/**
+	 * used in {@link Autoloop#loop(float[][], int, int, int, int, int, int, int)} to evaluate all candidates of
+	 * a start position at once with an FFT based cross-correlation
+	 */
+	public static final int CORRELATION = 1;
+	/**
+	 * used in {@link Autoloop#loop(float[][], int, int, int, int, int, int, int)} to evaluate every candidate
+	 * with {@link Autoloop#estimate(AudioBuffer, int, int, int, float, SearchStatistics)}, aborting as soon as a
+	 * candidate cannot be part of the result anymore
+	 */
+	public static final int BOUNDED = 2;
+	/**
+	 * like {@link Autoloop#BOUNDED}, but evaluates every candidate with
+	 * {@link Autoloop#estimateVector(AudioBuffer, int, int, int, float, SearchStatistics)}, which uses the SIMD
+	 * kernels of {@link ErrorKernel}; gives the same results up to rounding
+	 */
+	public static final int VECTOR = 3;
+	/**
+	 * used in {@link Autoloop#loop(float[][], int, int, int, int, int, int, int)} to walk the error matrix along
+	 * its diagonals: the error of (start + 1, end + 1) is the error of (start, end) minus the first and plus one
+	 * new squared difference, so with a small step every candidate costs a few updates instead of a full sum;
+	 * gives the same results up to rounding
+	 */
+	public static final int DIAGONAL = 4;
+
+	private static final int BLOCK_SIZE = 64;
+	// larger blocks for the kernels, which reduce their accumulators once per call
+	private static final int VECTOR_BLOCK_SIZE = 256;
+	// minimum number of running sum updates between two exact sums of the diagonal search
+	private static final int RESYNC_INTERVAL = 16384;
+	// start positions per row of the tiled search
+	private static final int TILE_STARTS = 16;
+	// end positions per tile of the tiled search; the end windows of a tile fit into the L2 cache
+	private static final int TILE_ENDS = 2048;
+
 	public static void main(String[] args) throws IOException, InterruptedException {
 		if(args.length != 7) {
 			System.out.println("Usage: Autoloop file.wav skip step minlen tail loopcount threadcnt");
@@ -21,7 +59,7 @@ public class Autoloop {
 
 		RiffWave wav = loadWaveFile(args[0]);
 		int[][] samples = wav.getSamples();
-		float[][] normalized = Normalizer.normalize(samples);
+		AudioBuffer normalized = Normalizer.normalize(samples, AudioBuffer.INTERLEAVED);
 
 		int skip = Integer.parseInt(args[1]);
 		int step = Integer.parseInt(args[2]);
@@ -56,129 +94,582 @@ public class Autoloop {
 		}
 	}
 
-	private static class Task {
-		private final int start;
+	/**
+	 * One row per start position, one cell per end position.
+	 */
+	private static class Search extends AnalysisExecutor.RowSearch {
+		private final AudioBuffer samples;
+		private final int skip;
+		private final int step;
+		private final int minLength;
+		private final int tailLength;
+		private final int maxlen;
+		private final int engine;
+		private final EnergyIndex energy;
+		// minimum energy of a window, 0 without loudness gate
+		private final double minEnergy;
+		// null without phase filter
+		private final PhaseIndex phase;
+		// null without lower bound cascade
+		private final LowerBounds bounds;
+		private final ThreadLocal<CrossCorrelation> correlation;
+		private final ThreadLocal<float[]> errors;
+		private final ThreadLocal<int[]> ends;
+
+		public Search(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int engine,
+				EnergyIndex energy, double gate, PhaseIndex phase, LowerBounds bounds) {
+			this.samples = samples;
+			this.skip = skip;
+			this.step = step;
+			this.minLength = minLength;
+			this.tailLength = tailLength;
+			this.engine = engine;
+			this.energy = energy;
+			this.phase = phase;
+			this.bounds = bounds;
+			minEnergy = gate * tailLength * samples.getChannels();
+			maxlen = samples.getLength() - tailLength;
+			if(engine == CORRELATION) {
+				correlation = ThreadLocal.withInitial(() -> new CrossCorrelation(samples, energy, tailLength));
+				errors = ThreadLocal.withInitial(() -> new float[Math.max(maxlen, 0)]);
+			} else {
+				correlation = null;
+				errors = null;
+			}
+			if(phase != null && engine != CORRELATION) {
+				ends = ThreadLocal.withInitial(() -> new int[Math.max(maxlen, 0)]);
+			} else {
+				ends = null;
+			}
+		}
 
-		public Task(int start) {
-			this.start = start;
+		@Override
+		public int getCells(int row) {
+			int first = skip + row * step + minLength;
+			return Math.max(maxlen - first, 0);
 		}
 
-		public int getStart() {
-			return start;
+		@Override
+		public void compute(int row, int from, int to, LoopCollector loops, SearchStatistics stats) {
+			int start = skip + row * step;
+			int first = start + minLength;
+			if(from >= to) {
+				return;
+			}
+			long perCandidate = (long) tailLength * samples.getChannels();
+			stats.candidates(to - from, perCandidate);
+			if(isGated(start)) {
+				stats.gated(to - from);
+				stats.skipped((to - from) * perCandidate);
+				return;
+			}
+			if(ends != null) {
+				// only the phase compatible ends
+				int[] list = ends.get();
+				int count = phase.ends(start, first + from, first + to, list);
+				stats.filtered(to - from - count);
+				stats.skipped((to - from - count) * perCandidate);
+				for(int i = 0; i < count; i++) {
+					evaluate(start, list[i], loops, stats);
+				}
+				return;
+			}
+			switch(engine) {
+			case CORRELATION:
+				float[] err = errors.get();
+				correlation.get().errors(start, first + from, first + to, err);
+				for(int end = first + from; end < first + to; end++) {
+					if(isGated(end)) {
+						stats.gated(1);
+						continue;
+					}
+					if(phase != null && !phase.isCompatible(start, end)) {
+						stats.filtered(1);
+						continue;
+					}
+					loops.add(start, end, err[end - first - from]);
+				}
+				break;
+			case BOUNDED:
+				for(int end = first + from; end < first + to; end++) {
+					if(isGated(end)) {
+						stats.gated(1);
+						stats.skipped(perCandidate);
+						continue;
+					}
+					float threshold = loops.threshold();
+					if(bounds != null && bounds.reject(start, end, threshold, stats)) {
+						stats.skipped(perCandidate);
+						continue;
+					}
+					float error = estimate(samples, start, end, tailLength, threshold, stats);
+					if(error <= threshold) {
+						loops.add(start, end, error);
+					}
+				}
+				break;
+			case VECTOR:
+				for(int end = first + from; end < first + to; end++) {
+					if(isGated(end)) {
+						stats.gated(1);
+						stats.skipped(perCandidate);
+						continue;
+					}
+					float threshold = loops.threshold();
+					if(bounds != null && bounds.reject(start, end, threshold, stats)) {
+						stats.skipped(perCandidate);
+						continue;
+					}
+					float error = estimateVector(samples, start, end, tailLength, threshold, stats);
+					if(error <= threshold) {
+						loops.add(start, end, error);
+					}
+				}
+				break;
+			default:
+				for(int end = first + from; end < first + to; end++) {
+					if(isGated(end)) {
+						stats.gated(1);
+						stats.skipped(perCandidate);
+						continue;
+					}
+					float error = estimate(samples, start, end, tailLength);
+					loops.add(start, end, error);
+				}
+			}
+		}
+
+		/**
+		 * Evaluates a single candidate with the engine.
+		 */
+		private void evaluate(int start, int end, LoopCollector loops, SearchStatistics stats) {
+			if(isGated(end)) {
+				stats.gated(1);
+				stats.skipped((long) tailLength * samples.getChannels());
+				return;
+			}
+			switch(engine) {
+			case BOUNDED: {
+				float threshold = loops.threshold();
+				if(bounds != null && bounds.reject(start, end, threshold, stats)) {
+					stats.skipped((long) tailLength * samples.getChannels());
+					break;
+				}
+				float error = estimate(samples, start, end, tailLength, threshold, stats);
+				if(error <= threshold) {
+					loops.add(start, end, error);
+				}
+				break;
+			}
+			case VECTOR: {
+				float threshold = loops.threshold();
+				if(bounds != null && bounds.reject(start, end, threshold, stats)) {
+					stats.skipped((long) tailLength * samples.getChannels());
+					break;
+				}
+				float error = estimateVector(samples, start, end, tailLength, threshold, stats);
+				if(error <= threshold) {
+					loops.add(start, end, error);
+				}
+				break;
+			}
+			default:
+				loops.add(start, end, estimate(samples, start, end, tailLength));
+			}
+		}
+
+		/**
+		 * Returns true if the window at pos is quieter than the loudness gate.
+		 */
+		private boolean isGated(int pos) {
+			return minEnergy > 0 && energy.energy(pos, tailLength) < minEnergy;
 		}
 	}
 
-	private static class ComputeThread extends Thread {
-		private final float[][] samples;
+	/**
+	 * The search of {@link Autoloop#DIRECT} in tiles: one row per {@link Autoloop#TILE_STARTS} start positions, and
+	 * the ends are evaluated in tiles of {@link Autoloop#TILE_ENDS} positions against all starts of the row. The
+	 * windows of a tile stay in the cache while they are compared to every start, instead of being loaded from
+	 * memory again for every start. Within a tile, every end sample is loaded once for four starts, which also
+	 * gives four independent sums.
+	 *
+	 * Every candidate is still summed in the order of {@link Autoloop#estimate(AudioBuffer, int, int, int)}, so the
+	 * errors are bit for bit the same. The cells of a row are its candidates ordered by end and start: an end is
+	 * a candidate for the starts whose minimum loop length it satisfies, which are the first starts of the row, so
+	 * the cells form segments in which the number of starts per end is constant.
+	 */
+	private static class TiledSearch extends AnalysisExecutor.RowSearch {
+		private final AudioBuffer samples;
+		private final float[] data;
+		private final int skip;
+		private final int step;
 		private final int minLength;
 		private final int tailLength;
+		private final int starts;
 		private final int maxlen;
-		private final Queue<Task> tasks;
-
-		private volatile Loop[] loops;
+		private final int runs;
+		private final int count;
 
-		public ComputeThread(float[][] samples, int minLength, int tailLength, int count, Queue<Task> tasks) {
+		public TiledSearch(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int starts) {
 			this.samples = samples;
+			this.skip = skip;
+			this.step = step;
 			this.minLength = minLength;
 			this.tailLength = tailLength;
-			this.tasks = tasks;
-			maxlen = samples[0].length - tailLength;
-			loops = new Loop[count];
+			this.starts = starts;
+			maxlen = samples.getLength() - tailLength;
+			data = samples.getData();
+			runs = getRunCount(samples);
+			count = tailLength * samples.getChannels() / runs;
+		}
+
+		public int getRows() {
+			return (starts + TILE_STARTS - 1) / TILE_STARTS;
+		}
+
+		private int getStart(int row, int i) {
+			return skip + (row * TILE_STARTS + i) * step;
+		}
+
+		// number of starts of the row with at least one end
+		private int getStarts(int row) {
+			int n = Math.min(TILE_STARTS, starts - row * TILE_STARTS);
+			while(n > 0 && getStart(row, n - 1) + minLength >= maxlen) {
+				n--;
+			}
+			return n;
+		}
+
+		@Override
+		public int getCells(int row) {
+			int n = getStarts(row);
+			long cells = 0;
+			for(int i = 0; i < n; i++) {
+				cells += maxlen - getStart(row, i) - minLength;
+			}
+			return (int) cells;
 		}
 
 		@Override
-		public void run() {
-			Loop[] best = new Loop[loops.length];
-			try {
-				while(!tasks.isEmpty()) {
-					Task task = tasks.remove();
-					int start = task.getStart();
-					for(int end = start + minLength; end < maxlen; end++) {
-						float error = estimate(samples, start, end, tailLength);
-						int worst = -1;
-						float worsterror = -Float.MAX_VALUE;
-						for(int i = 0; i < best.length; i++) {
-							if(best[i] == null) {
-								best[i] = new Loop(start, end, error);
-								break;
-							} else if(best[i].error > worsterror) {
-								worst = i;
-								worsterror = best[i].error;
-							}
-						}
-						if(worst != -1) {
-							best[worst] = new Loop(start, end, error);
-						}
+		public void compute(int row, int from, int to, LoopCollector loops, SearchStatistics stats) {
+			if(from >= to) {
+				return;
+			}
+			stats.candidates(to - from, (long) tailLength * samples.getChannels());
+			int n = getStarts(row);
+			int[] start = new int[n];
+			for(int i = 0; i < n; i++) {
+				start[i] = getStart(row, i);
+			}
+			// segment i: the ends [start[i] + minLength, start[i + 1] + minLength) with i + 1 starts each
+			long cell = 0;
+			for(int i = 0; i < n && cell < to; i++) {
+				int first = start[i] + minLength;
+				int last = i + 1 < n ? start[i + 1] + minLength : maxlen;
+				int width = i + 1;
+				long size = (long) width * (last - first);
+				long lo = Math.max(from, cell);
+				long hi = Math.min(to, cell + size);
+				if(lo < hi) {
+					computeSegment(start, width, first, (int) (lo - cell), (int) (hi - cell), loops);
+				}
+				cell += size;
+			}
+		}
+
+		/**
+		 * Evaluates the cells [from, to) of a segment with the given number of starts per end.
+		 */
+		private void computeSegment(int[] start, int width, int first, int from, int to, LoopCollector loops) {
+			int firstEnd = first + from / width;
+			int lastEnd = first + to / width;
+			int r0 = from % width;
+			int r1 = to % width;
+			if(firstEnd == lastEnd) {
+				for(int r = r0; r < r1; r++) {
+					loops.add(start[r], firstEnd, estimate(samples, start[r], firstEnd, tailLength));
+				}
+				return;
+			}
+			if(r0 > 0) {
+				for(int r = r0; r < width; r++) {
+					loops.add(start[r], firstEnd, estimate(samples, start[r], firstEnd, tailLength));
+				}
+				firstEnd++;
+			}
+			for(int tile = firstEnd; tile < lastEnd; tile += TILE_ENDS) {
+				int tileEnd = Math.min(tile + TILE_ENDS, lastEnd);
+				int r = 0;
+				for(; r + 4 <= width; r += 4) {
+					for(int end = tile; end < tileEnd; end++) {
+						estimate4(start, r, end, loops);
+					}
+				}
+				for(; r < width; r++) {
+					for(int end = tile; end < tileEnd; end++) {
+						loops.add(start[r], end, estimate(samples, start[r], end, tailLength));
 					}
 				}
-			} catch(NoSuchElementException e) {
-				// tasks.remove() failed, swallow
 			}
-			this.loops = best;
+			for(int r = 0; r < r1; r++) {
+				loops.add(start[r], lastEnd, estimate(samples, start[r], lastEnd, tailLength));
+			}
 		}
 
-		public Loop[] getLoops() {
-			return loops;
+		/**
+		 * Computes the errors of the starts r to r + 3 with one end, like
+		 * {@link Autoloop#estimate(AudioBuffer, int, int, int)}.
+		 */
+		private void estimate4(int[] start, int r, int end, LoopCollector loops) {
+			float e0 = 0;
+			float e1 = 0;
+			float e2 = 0;
+			float e3 = 0;
+			for(int run = 0; run < runs; run++) {
+				int a0 = samples.offset(run, start[r]);
+				int a1 = samples.offset(run, start[r + 1]);
+				int a2 = samples.offset(run, start[r + 2]);
+				int a3 = samples.offset(run, start[r + 3]);
+				int b0 = samples.offset(run, end);
+				for(int i = 0; i < count; i++) {
+					float b = data[b0 + i];
+					float d0 = data[a0 + i] - b;
+					float d1 = data[a1 + i] - b;
+					float d2 = data[a2 + i] - b;
+					float d3 = data[a3 + i] - b;
+					e0 += d0 * d0;
+					e1 += d1 * d1;
+					e2 += d2 * d2;
+					e3 += d3 * d3;
+				}
+			}
+			if(!Float.isFinite(e0 + e1 + e2 + e3)) {
+				System.out.println("Error is not finite");
+			}
+			loops.add(start[r], end, e0);
+			loops.add(start[r + 1], end, e1);
+			loops.add(start[r + 2], end, e2);
+			loops.add(start[r + 3], end, e3);
 		}
 	}
 
-	public static Loop[] loop(float[][] samples, int skip, int step, int minLength, int tailLength, int loopcnt,
-			int threadcnt) throws InterruptedException {
-		int maxlen = samples[0].length - tailLength - skip;
-		ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
-		ComputeThread[] threads = new ComputeThread[threadcnt];
-
-		for(int start = skip; start < maxlen; start += step) {
-			tasks.add(new Task(start));
-		}
+	/**
+	 * One row per loop length (the diagonals of the error matrix), one cell per start position. A cell range is
+	 * evaluated with a running sum which starts with an exact sum and moves from start to start by removing the
+	 * squared differences that leave the window and adding the ones that enter it. The sum is kept in double
+	 * precision and recomputed exactly after a number of updates, so the rounding errors cannot accumulate. The
+	 * exact sums are the ones of {@link Autoloop#estimate(AudioBuffer, int, int, int)}, so with a step of at least
+	 * a quarter of the tail length, the results are identical to {@link Autoloop#DIRECT}.
+	 */
+	private static class DiagonalSearch extends AnalysisExecutor.RowSearch {
+		private final AudioBuffer samples;
+		private final float[] data;
+		private final int[] base;
+		private final int stride;
+		private final int skip;
+		private final int step;
+		private final int minLength;
+		private final int tailLength;
+		private final int starts;
+		private final int maxlen;
+		private final int resync;
+		private final EnergyIndex energy;
+		private final double minEnergy;
+		private final PhaseIndex phase;
 
-		// spawn threads
-		for(int i = 0; i < threadcnt; i++) {
-			threads[i] = new ComputeThread(samples, minLength, tailLength, loopcnt, tasks);
-			threads[i].start();
+		public DiagonalSearch(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int starts,
+				EnergyIndex energy, double gate, PhaseIndex phase) {
+			this.samples = samples;
+			this.skip = skip;
+			this.step = step;
+			this.minLength = minLength;
+			this.tailLength = tailLength;
+			this.starts = starts;
+			this.energy = energy;
+			this.phase = phase;
+			minEnergy = gate * tailLength * samples.getChannels();
+			maxlen = samples.getLength() - tailLength;
+			resync = Math.max(RESYNC_INTERVAL, 16 * tailLength);
+			data = samples.getData();
+			stride = samples.getFrameStride();
+			base = new int[samples.getChannels()];
+			for(int ch = 0; ch < base.length; ch++) {
+				base[ch] = samples.offset(ch, 0);
+			}
 		}
 
-		// wait for results
-		for(Thread t : threads) {
-			t.join();
+		public int getRows() {
+			return Math.max(maxlen - skip - minLength, 0);
 		}
 
-		// collect results
-		Loop[] loops = new Loop[loopcnt * threadcnt];
-		int i = 0;
-		for(ComputeThread t : threads) {
-			Loop[] l = t.getLoops();
-			System.arraycopy(l, 0, loops, i, l.length);
-			i += l.length;
+		@Override
+		public int getCells(int row) {
+			// starts with start + length < maxlen
+			int length = minLength + row;
+			int n = (int) ((maxlen - length - skip + (long) step - 1) / step);
+			return Math.max(Math.min(n, starts), 0);
 		}
 
-		// remove null results
-		int nonnull = 0;
-		for(Loop loop : loops) {
-			if(loop != null) {
-				nonnull++;
+		// squared difference of the frames pos and pos + length over all channels
+		private double diff(int pos, int length) {
+			double sum = 0;
+			for(int ch = 0; ch < base.length; ch++) {
+				int off = base[ch] + pos * stride;
+				double d = data[off] - data[off + length * stride];
+				sum += d * d;
 			}
+			return sum;
 		}
 
-		Loop[] result;
-		if(nonnull == 0) {
-			return null;
-		} else if(nonnull != loops.length) {
-			result = new Loop[nonnull];
-			int j;
-			for(i = 0, j = 0; i < loops.length; i++) {
-				if(loops[i] != null) {
-					result[j++] = loops[i];
+		@Override
+		public void compute(int row, int from, int to, LoopCollector loops, SearchStatistics stats) {
+			if(from >= to) {
+				return;
+			}
+			int length = minLength + row;
+			long work = 0;
+			int updates = 0;
+			double error = 0;
+			for(int k = from; k < to; k++) {
+				int start = skip + k * step;
+				// moving costs two differences per sample in double precision, which is about as expensive as four
+				// samples of a fresh sum, so large steps start over
+				if(k == from || 4 * step >= tailLength || updates >= resync) {
+					error = estimate(samples, start, start + length, tailLength);
+					work += tailLength;
+					updates = 0;
+				} else {
+					int prev = start - step;
+					for(int i = 0; i < step; i++) {
+						error += diff(prev + i + tailLength, length) - diff(prev + i, length);
+					}
+					work += 2 * step;
+					updates += step;
+				}
+				if(minEnergy > 0 && (energy.energy(start, tailLength) < minEnergy ||
+						energy.energy(start + length, tailLength) < minEnergy)) {
+					stats.gated(1);
+					continue;
+				}
+				if(phase != null && !phase.isCompatible(start, start + length)) {
+					// the running sum still has to move over it
+					stats.filtered(1);
+					continue;
 				}
+				loops.add(start, start + length, (float) Math.max(error, 0));
 			}
-		} else {
-			result = loops;
+			int channels = samples.getChannels();
+			stats.candidates(to - from, (long) tailLength * channels);
+			stats.skipped(Math.max((long) (to - from) * tailLength - work, 0) * channels);
 		}
+	}
+
+	public static Loop[] loop(float[][] samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt) throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, DIRECT, null);
+	}
+
+	public static Loop[] loop(float[][] samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine) throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, engine, null);
+	}
+
+	public static Loop[] loop(float[][] samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, SearchStatistics stats) throws InterruptedException {
+		return loop(AudioBuffer.interleaved(samples), skip, step, minLength, tailLength, loopcnt, threadcnt, engine,
+				stats);
+	}
+
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt) throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, DIRECT, null);
+	}
 
-		// sort result according to score
-		Arrays.sort(result);
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, SearchStatistics stats) throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, engine, stats, null);
+	}
+
+	/**
+	 * @param control
+	 *                reports the progress and stops the search early, may be null; see {@link LoopSearch}
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, SearchStatistics stats, LoopSearch control) throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, engine, 0, null, stats, control);
+	}
+
+	/**
+	 * Searches loops, skipping silent or decayed parts: a candidate whose start or end window has a mean square
+	 * below the gate is not evaluated. Silence loops almost perfectly, so without a gate, the loops of a sample
+	 * which decays to silence tend to end up in its quiet tail.
+	 *
+	 * @param gate
+	 *                minimum mean square of a window (the samples are normalized to a peak of 1), 0 for no gate
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, double gate, SearchStatistics stats, LoopSearch control)
+			throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, engine, gate, null, stats,
+				control);
+	}
 
-		return result;
+	/**
+	 * Searches loops, only evaluating the ends which are phase compatible with their start. With
+	 * {@link Autoloop#DIRECT}, {@link Autoloop#BOUNDED} and {@link Autoloop#VECTOR}, the other ends are not
+	 * compared at all; {@link Autoloop#CORRELATION} and {@link Autoloop#DIAGONAL} compute all errors at once and
+	 * only drop the incompatible candidates from the result.
+	 *
+	 * @param phase
+	 *                index of the samples, see {@link PhaseIndex}; null to evaluate all ends
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, double gate, PhaseIndex phase, SearchStatistics stats, LoopSearch control)
+			throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, engine, gate, phase, false,
+				stats, control);
+	}
+
+	/**
+	 * @param cascade
+	 *                test every candidate with the {@link LowerBounds} cascade before evaluating it; only used by
+	 *                {@link Autoloop#BOUNDED} and {@link Autoloop#VECTOR}, gives the same results
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, double gate, PhaseIndex phase, boolean cascade, SearchStatistics stats,
+			LoopSearch control) throws InterruptedException {
+		int maxlen = samples.getLength() - tailLength - skip;
+		int starts = 0;
+		if(maxlen > skip) {
+			starts = (int) ((maxlen - skip + (long) step - 1) / step);
+		}
+
+		boolean useBounds = cascade && (engine == BOUNDED || engine == VECTOR);
+		EnergyIndex energy = null;
+		if(engine == CORRELATION || gate > 0 || useBounds) {
+			energy = new EnergyIndex(samples);
+		}
+		LowerBounds bounds = null;
+		if(useBounds) {
+			bounds = new LowerBounds(samples, energy, tailLength);
+		}
+
+		if(engine == DIAGONAL) {
+			DiagonalSearch search = new DiagonalSearch(samples, skip, step, minLength, tailLength, starts, energy,
+					gate, phase);
+			return AnalysisExecutor.run(search, search.getRows(), loopcnt, threadcnt, stats, control);
+		}
+
+		// the cells of a row have to fit into an int
+		if(engine == DIRECT && gate <= 0 && phase == null &&
+				(long) TILE_STARTS * samples.getLength() <= Integer.MAX_VALUE) {
+			TiledSearch search = new TiledSearch(samples, skip, step, minLength, tailLength, starts);
+			return AnalysisExecutor.run(search, search.getRows(), loopcnt, threadcnt, stats, control);
+		}
+
+		Search search = new Search(samples, skip, step, minLength, tailLength, engine, energy, gate, phase,
+				bounds);
+		return AnalysisExecutor.run(search, starts, loopcnt, threadcnt, stats, control);
 	}
 
 	public static float estimate(float[][] samples, int start, int end, int tailLength) {
@@ -197,4 +688,105 @@ public class Autoloop {
 		}
 		return error;
 	}
+
+	public static float estimate(AudioBuffer samples, int start, int end, int tailLength) {
+		float[] data = samples.getData();
+		int runs = getRunCount(samples);
+		int count = tailLength * samples.getChannels() / runs;
+		float error = 0;
+		for(int run = 0; run < runs; run++) {
+			int a0 = samples.offset(run, start);
+			int b0 = samples.offset(run, end);
+			for(int i = 0; i < count; i++) {
+				float a = data[a0 + i];
+				float b = data[b0 + i];
+				float diff = (a - b) * (a - b);
+				error += diff;
+			}
+		}
+		if(!Double.isFinite(error)) {
+			System.out.println("Error is not finite");
+		}
+		return error;
+	}
+
+	/**
+	 * Computes the same error as {@link Autoloop#estimate(AudioBuffer, int, int, int)}, but stops as soon as the
+	 * partial error exceeds the threshold. The partial sums never decrease, so a candidate that is aborted could
+	 * never have been accepted. The threshold is only checked once per block, which keeps the inner loop simple.
+	 *
+	 * @return the error, or a partial error above the threshold if the evaluation was aborted
+	 */
+	public static float estimate(AudioBuffer samples, int start, int end, int tailLength, float threshold,
+			SearchStatistics stats) {
+		float[] data = samples.getData();
+		int runs = getRunCount(samples);
+		int count = tailLength * samples.getChannels() / runs;
+		float error = 0;
+		for(int run = 0; run < runs; run++) {
+			int a0 = samples.offset(run, start);
+			int b0 = samples.offset(run, end);
+			for(int i = 0; i < count;) {
+				int blockEnd = Math.min(i + BLOCK_SIZE, count);
+				for(; i < blockEnd; i++) {
+					float a = data[a0 + i];
+					float b = data[b0 + i];
+					float diff = (a - b) * (a - b);
+					error += diff;
+				}
+				if(error > threshold) {
+					if(stats != null) {
+						stats.skipped((long) (runs - run) * count - i);
+					}
+					return error;
+				}
+			}
+		}
+		if(!Double.isFinite(error)) {
+			System.out.println("Error is not finite");
+		}
+		return error;
+	}
+
+	/**
+	 * Variant of {@link Autoloop#estimate(AudioBuffer, int, int, int, float, SearchStatistics)} which sums the
+	 * blocks with {@link ErrorKernel}. With an infinite threshold, it computes the full error.
+	 */
+	public static float estimateVector(AudioBuffer samples, int start, int end, int tailLength, float threshold,
+			SearchStatistics stats) {
+		float[] data = samples.getData();
+		int runs = getRunCount(samples);
+		int count = tailLength * samples.getChannels() / runs;
+		float error = 0;
+		for(int run = 0; run < runs; run++) {
+			int a0 = samples.offset(run, start);
+			int b0 = samples.offset(run, end);
+			for(int i = 0; i < count; i += VECTOR_BLOCK_SIZE) {
+				int n = Math.min(VECTOR_BLOCK_SIZE, count - i);
+				error += ErrorKernel.squaredError(data, a0 + i, b0 + i, n);
+				if(error > threshold) {
+					if(stats != null) {
+						stats.skipped((long) (runs - run) * count - i - n);
+					}
+					return error;
+				}
+			}
+		}
+		if(!Double.isFinite(error)) {
+			System.out.println("Error is not finite");
+		}
+		return error;
+	}
+
+	/**
+	 * Returns the number of contiguous ranges a window of all channels consists of: one for interleaved buffers,
+	 * one per channel for planar buffers.
+	 */
+	static int getRunCount(AudioBuffer samples) {
+		if(samples.getLayout() == AudioBuffer.INTERLEAVED) {
+			return 1;
+		} else {
+			return samples.getChannels();
+		}
+	}
 }
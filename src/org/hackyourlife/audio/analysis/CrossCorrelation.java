@@ -0,0 +1,118 @@
+package org.hackyourlife.audio.analysis;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.dsp.FFT;
+
+/**
+ * Computes the loop error of one start position against a whole range of end positions at once. The squared error
+ * is decomposed into sum(a^2) + sum(b^2) - 2 * sum(a*b); the energy terms come from an {@link EnergyIndex}, the
+ * cross term is computed as an overlap-save cross-correlation via the FFT.
+ *
+ * Instances hold scratch buffers and must not be shared between threads.
+ */
+public class CrossCorrelation {
+	private final AudioBuffer samples;
+	private final EnergyIndex energy;
+	private final int tailLength;
+	private final int fftSize;
+	private final int hop;
+
+	private final double[][] templateRe;
+	private final double[][] templateIm;
+	private final double[] re;
+	private final double[] im;
+	private final double[] accRe;
+	private final double[] accIm;
+
+	public CrossCorrelation(AudioBuffer samples, EnergyIndex energy, int tailLength) {
+		this.samples = samples;
+		this.energy = energy;
+		this.tailLength = tailLength;
+
+		fftSize = getFFTSize(tailLength);
+		hop = fftSize - tailLength + 1;
+
+		int nch = samples.getChannels();
+		templateRe = new double[nch][fftSize];
+		templateIm = new double[nch][fftSize];
+		re = new double[fftSize];
+		im = new double[fftSize];
+		accRe = new double[fftSize];
+		accIm = new double[fftSize];
+	}
+
+	public static int getFFTSize(int tailLength) {
+		int size = 1024;
+		while(size < 4 * tailLength) {
+			size *= 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Computes the error of the loop (start, end) for every end in [from, to) and stores it in errors[end - from].
+	 * The result is the same as {@link Autoloop#estimate(AudioBuffer, int, int, int)}, up to rounding.
+	 */
+	public void errors(int start, int from, int to, float[] errors) {
+		float[] data = samples.getData();
+		int stride = samples.getFrameStride();
+		int nch = samples.getChannels();
+		int samplecnt = samples.getLength();
+
+		// transform the template (the samples after the loop start) once
+		for(int ch = 0; ch < nch; ch++) {
+			double[] tr = templateRe[ch];
+			double[] ti = templateIm[ch];
+			for(int i = 0, off = samples.offset(ch, start); i < tailLength; i++, off += stride) {
+				tr[i] = data[off];
+			}
+			for(int i = tailLength; i < fftSize; i++) {
+				tr[i] = 0;
+			}
+			for(int i = 0; i < fftSize; i++) {
+				ti[i] = 0;
+			}
+			FFT.fft(tr, ti, FFT.FORWARD);
+		}
+
+		double ea = energy.energy(start, tailLength);
+		double scale = 1.0 / fftSize;
+
+		for(int block = from; block < to; block += hop) {
+			int count = Math.min(hop, to - block);
+
+			// sum X * conj(A) over all channels, so only one inverse transform is necessary per block
+			for(int i = 0; i < fftSize; i++) {
+				accRe[i] = 0;
+				accIm[i] = 0;
+			}
+			for(int ch = 0; ch < nch; ch++) {
+				int n = Math.min(fftSize, samplecnt - block);
+				for(int i = 0, off = samples.offset(ch, block); i < n; i++, off += stride) {
+					re[i] = data[off];
+					im[i] = 0;
+				}
+				for(int i = n; i < fftSize; i++) {
+					re[i] = 0;
+					im[i] = 0;
+				}
+				FFT.fft(re, im, FFT.FORWARD);
+
+				double[] tr = templateRe[ch];
+				double[] ti = templateIm[ch];
+				for(int i = 0; i < fftSize; i++) {
+					accRe[i] += re[i] * tr[i] + im[i] * ti[i];
+					accIm[i] += im[i] * tr[i] - re[i] * ti[i];
+				}
+			}
+			FFT.fft(accRe, accIm, FFT.REVERSE);
+
+			for(int i = 0; i < count; i++) {
+				int end = block + i;
+				double eb = energy.energy(end, tailLength);
+				double error = ea + eb - 2 * accRe[i] * scale;
+				errors[end - from] = (float) Math.max(error, 0);
+			}
+		}
+	}
+}
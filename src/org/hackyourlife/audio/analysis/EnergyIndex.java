@@ -0,0 +1,122 @@
+package org.hackyourlife.audio.analysis;
+
+import org.hackyourlife.audio.AudioBuffer;
+
+/**
+ * Prefix sums of squares per channel, which give the energy of any window in constant time. The error of a loop
+ * decomposes into sum(a^2) + sum(b^2) - 2 * sum(a*b), so the index provides the energy terms of
+ * {@link CrossCorrelation}; it also serves as a cheap loudness gate for the loop search.
+ *
+ * A single running sum over the whole file would lose the precision of short, quiet windows once the sum is large.
+ * The prefix sums therefore restart every {@link EnergyIndex#CHUNK_SIZE} samples, and a window is assembled from
+ * the parts of the chunks it touches, so its rounding error only depends on the energy of these chunks, not on its
+ * position in the file. Only windows spanning many chunks use the running totals of the chunks, which are kept with
+ * compensated summation.
+ */
+public class EnergyIndex {
+	private static final int CHUNK_SHIFT = 12;
+	public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	// windows spanning more chunks use the running totals
+	private static final int MAX_CHUNKS = 16;
+
+	private final int channels;
+	private final int length;
+	// per channel: prefix sums within the chunk, length + 1 entries
+	private final double[][] local;
+	// per channel: sum of chunk i
+	private final double[][] chunk;
+	// per channel: sum of all chunks before chunk i
+	private final double[][] base;
+
+	public EnergyIndex(AudioBuffer samples) {
+		channels = samples.getChannels();
+		length = samples.getLength();
+		int chunks = (length >> CHUNK_SHIFT) + 1;
+		local = new double[channels][length + 1];
+		chunk = new double[channels][chunks];
+		base = new double[channels][chunks];
+
+		float[] data = samples.getData();
+		int stride = samples.getFrameStride();
+		for(int ch = 0; ch < channels; ch++) {
+			double[] prefix = local[ch];
+			double[] sums = chunk[ch];
+			double[] totals = base[ch];
+			double sum = 0;
+			double total = 0;
+			double compensation = 0;
+			for(int i = 0, off = samples.offset(ch, 0); i < length; i++, off += stride) {
+				double x = data[off];
+				sum += x * x;
+				if(((i + 1) & (CHUNK_SIZE - 1)) == 0) {
+					sums[i >> CHUNK_SHIFT] = sum;
+					// Kahan summation of the chunk totals
+					double y = sum - compensation;
+					double t = total + y;
+					compensation = (t - total) - y;
+					total = t;
+					totals[(i + 1) >> CHUNK_SHIFT] = total;
+					sum = 0;
+				}
+				prefix[i + 1] = sum;
+			}
+			if((length & (CHUNK_SIZE - 1)) != 0) {
+				sums[length >> CHUNK_SHIFT] = sum;
+			}
+		}
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the sum of squares of the samples [start, start + count) of one channel.
+	 */
+	public double energy(int ch, int start, int count) {
+		int end = start + count;
+		double[] prefix = local[ch];
+		int first = start >> CHUNK_SHIFT;
+		int last = end >> CHUNK_SHIFT;
+		if(first == last) {
+			return prefix[end] - prefix[start];
+		}
+		// rest of the first chunk, the chunks in between, start of the last chunk
+		double[] sums = chunk[ch];
+		double sum = sums[first] - prefix[start];
+		if(last - first <= MAX_CHUNKS) {
+			for(int i = first + 1; i < last; i++) {
+				sum += sums[i];
+			}
+		} else {
+			double[] totals = base[ch];
+			sum += totals[last] - totals[first + 1];
+		}
+		return sum + prefix[end];
+	}
+
+	/**
+	 * Returns the sum of squares of the samples [start, start + count) of all channels.
+	 */
+	public double energy(int start, int count) {
+		double sum = 0;
+		for(int ch = 0; ch < channels; ch++) {
+			sum += energy(ch, start, count);
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the mean square of the samples [start, start + count) of all channels, the square of the RMS level.
+	 */
+	public double meanSquare(int start, int count) {
+		if(count == 0) {
+			return 0;
+		}
+		return energy(start, count) / ((double) count * channels);
+	}
+}
@@ -0,0 +1,142 @@
+package org.hackyourlife.audio.analysis;
+
+/**
+ * Sums of squared differences for the {@link Autoloop#VECTOR} engine. The plain loops in the estimate methods add
+ * every difference to a single accumulator, so each addition has to wait for the previous one and the JIT cannot
+ * vectorize them. The kernels here use several independent accumulators instead; the result differs from the
+ * sequential sum by rounding.
+ *
+ * If the Vector API (module jdk.incubator.vector) is available at runtime, the float kernel uses SIMD registers,
+ * otherwise a scalar loop with four accumulators. The module has to be added to the JVM with
+ * {@code --add-modules jdk.incubator.vector}; the system property {@code autoloop.vector=false} disables it. The
+ * quantized spectrogram formats always use the scalar kernels, since they need a table lookup per element.
+ */
+public class ErrorKernel {
+	/**
+	 * A float kernel, see {@link ErrorKernel#squaredError(float[], int, int, int)}.
+	 */
+	interface Kernel {
+		float squaredError(float[] data, int a0, int b0, int count);
+
+		String getName();
+	}
+
+	private static final String VECTOR_KERNEL = "org.hackyourlife.audio.analysis.VectorKernel";
+
+	private static final Kernel KERNEL = load();
+
+	private static Kernel load() {
+		if(!"false".equals(System.getProperty("autoloop.vector"))) {
+			try {
+				return (Kernel) Class.forName(VECTOR_KERNEL).getDeclaredConstructor().newInstance();
+			} catch(ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+				// module not added, class not compiled, or no SIMD support worth using
+			}
+		}
+		return new ScalarKernel();
+	}
+
+	/**
+	 * Returns true if the float kernel uses the Vector API.
+	 */
+	public static boolean isVectorized() {
+		return !(KERNEL instanceof ScalarKernel);
+	}
+
+	/**
+	 * Returns a short description of the float kernel, e.g. for log messages.
+	 */
+	public static String getName() {
+		return KERNEL.getName();
+	}
+
+	/**
+	 * Returns the sum of (data[a0 + i] - data[b0 + i])^2 for i in [0, count).
+	 */
+	public static float squaredError(float[] data, int a0, int b0, int count) {
+		return KERNEL.squaredError(data, a0, b0, count);
+	}
+
+	/**
+	 * Like {@link ErrorKernel#squaredError(float[], int, int, int)} for values decoded with a table.
+	 */
+	public static float squaredError(float[] table, short[] data, int a0, int b0, int count) {
+		float e0 = 0;
+		float e1 = 0;
+		float e2 = 0;
+		float e3 = 0;
+		int i = 0;
+		for(; i <= count - 4; i += 4) {
+			float d0 = table[data[a0 + i] & 0xFFFF] - table[data[b0 + i] & 0xFFFF];
+			float d1 = table[data[a0 + i + 1] & 0xFFFF] - table[data[b0 + i + 1] & 0xFFFF];
+			float d2 = table[data[a0 + i + 2] & 0xFFFF] - table[data[b0 + i + 2] & 0xFFFF];
+			float d3 = table[data[a0 + i + 3] & 0xFFFF] - table[data[b0 + i + 3] & 0xFFFF];
+			e0 += d0 * d0;
+			e1 += d1 * d1;
+			e2 += d2 * d2;
+			e3 += d3 * d3;
+		}
+		for(; i < count; i++) {
+			float d = table[data[a0 + i] & 0xFFFF] - table[data[b0 + i] & 0xFFFF];
+			e0 += d * d;
+		}
+		return (e0 + e1) + (e2 + e3);
+	}
+
+	/**
+	 * Like {@link ErrorKernel#squaredError(float[], int, int, int)} for values decoded with a table.
+	 */
+	public static float squaredError(float[] table, byte[] data, int a0, int b0, int count) {
+		float e0 = 0;
+		float e1 = 0;
+		float e2 = 0;
+		float e3 = 0;
+		int i = 0;
+		for(; i <= count - 4; i += 4) {
+			float d0 = table[data[a0 + i] & 0xFF] - table[data[b0 + i] & 0xFF];
+			float d1 = table[data[a0 + i + 1] & 0xFF] - table[data[b0 + i + 1] & 0xFF];
+			float d2 = table[data[a0 + i + 2] & 0xFF] - table[data[b0 + i + 2] & 0xFF];
+			float d3 = table[data[a0 + i + 3] & 0xFF] - table[data[b0 + i + 3] & 0xFF];
+			e0 += d0 * d0;
+			e1 += d1 * d1;
+			e2 += d2 * d2;
+			e3 += d3 * d3;
+		}
+		for(; i < count; i++) {
+			float d = table[data[a0 + i] & 0xFF] - table[data[b0 + i] & 0xFF];
+			e0 += d * d;
+		}
+		return (e0 + e1) + (e2 + e3);
+	}
+
+	static class ScalarKernel implements Kernel {
+		@Override
+		public float squaredError(float[] data, int a0, int b0, int count) {
+			float e0 = 0;
+			float e1 = 0;
+			float e2 = 0;
+			float e3 = 0;
+			int i = 0;
+			for(; i <= count - 4; i += 4) {
+				float d0 = data[a0 + i] - data[b0 + i];
+				float d1 = data[a0 + i + 1] - data[b0 + i + 1];
+				float d2 = data[a0 + i + 2] - data[b0 + i + 2];
+				float d3 = data[a0 + i + 3] - data[b0 + i + 3];
+				e0 += d0 * d0;
+				e1 += d1 * d1;
+				e2 += d2 * d2;
+				e3 += d3 * d3;
+			}
+			for(; i < count; i++) {
+				float d = data[a0 + i] - data[b0 + i];
+				e0 += d * d;
+			}
+			return (e0 + e1) + (e2 + e3);
+		}
+
+		@Override
+		public String getName() {
+			return "scalar, 4 accumulators";
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package org.hackyourlife.audio.analysis;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the best loops (smallest error) without allocating a {@link Loop} per candidate. The candidates are kept
+ * in a max-heap stored in parallel primitive arrays, so the current worst entry is always at index 0 and a
+ * candidate that cannot make it into the result is rejected with a single comparison.
+ *
+ * Loops are ordered by error, ties are broken by start and then by end position. This makes the result independent
+ * of the order in which the candidates are added, and therefore independent of the number of threads.
+ *
+ * Instances are not thread safe; every thread uses its own collector and the results are combined with
+ * {@link LoopCollector#merge(LoopCollector[], int)}. Collectors created together with
+ * {@link LoopCollector#create(int, int)} share their threshold: as soon as one of them is full, its worst error is
+ * a bound for all of them, because no candidate above it can be part of the merged result.
+ */
+public class LoopCollector {
+	private final int[] start;
+	private final int[] end;
+	private final float[] error;
+	private int size;
+	private float best = Float.POSITIVE_INFINITY;
+
+	// float bits of the shared threshold; errors are never negative, so the int order is the float order
+	private final AtomicInteger shared;
+
+	public LoopCollector(int capacity) {
+		this(capacity, new AtomicInteger(Float.floatToIntBits(Float.POSITIVE_INFINITY)));
+	}
+
+	private LoopCollector(int capacity, AtomicInteger shared) {
+		if(capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		start = new int[capacity];
+		end = new int[capacity];
+		error = new float[capacity];
+		size = 0;
+		this.shared = shared;
+	}
+
+	/**
+	 * Creates count collectors which share their threshold.
+	 */
+	public static LoopCollector[] create(int count, int capacity) {
+		AtomicInteger shared = new AtomicInteger(Float.floatToIntBits(Float.POSITIVE_INFINITY));
+		LoopCollector[] collectors = new LoopCollector[count];
+		for(int i = 0; i < count; i++) {
+			collectors[i] = new LoopCollector(capacity, shared);
+		}
+		return collectors;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return error.length;
+	}
+
+	public boolean isFull() {
+		return size == error.length;
+	}
+
+	/**
+	 * Returns the smallest error collected so far, or positive infinity if the collector is empty.
+	 */
+	public float best() {
+		return best;
+	}
+
+	/**
+	 * Returns the error above which a candidate cannot be part of the merged result, or positive infinity if none
+	 * of the collectors sharing the threshold is full yet.
+	 */
+	public float threshold() {
+		float bound = Float.intBitsToFloat(shared.get());
+		if(size == error.length && error[0] < bound) {
+			return error[0];
+		} else {
+			return bound;
+		}
+	}
+
+	private void publish() {
+		if(size == error.length) {
+			int bits = Float.floatToIntBits(error[0]);
+			int current = shared.get();
+			while(bits >= 0 && bits < current && !shared.compareAndSet(current, bits)) {
+				current = shared.get();
+			}
+		}
+	}
+
+	/**
+	 * Adds a candidate if it is better than the current worst entry or if the collector is not full yet.
+	 *
+	 * @return true if the candidate was accepted
+	 */
+	public boolean add(int loopStart, int loopEnd, float loopError) {
+		if(size < error.length) {
+			int i = size++;
+			// sift up
+			while(i > 0) {
+				int parent = (i - 1) >> 1;
+				if(compare(loopError, loopStart, loopEnd, parent) <= 0) {
+					break;
+				}
+				set(i, parent);
+				i = parent;
+			}
+			start[i] = loopStart;
+			end[i] = loopEnd;
+			error[i] = loopError;
+			if(loopError < best) {
+				best = loopError;
+			}
+			publish();
+			return true;
+		}
+
+		// early reject without touching anything but the root
+		if(loopError > error[0] || compare(loopError, loopStart, loopEnd, 0) >= 0) {
+			return false;
+		}
+
+		// replace the root and sift down
+		int i = 0;
+		while(true) {
+			int child = 2 * i + 1;
+			if(child >= size) {
+				break;
+			}
+			if(child + 1 < size && compare(child + 1, child) > 0) {
+				child++;
+			}
+			if(compare(loopError, loopStart, loopEnd, child) >= 0) {
+				break;
+			}
+			set(i, child);
+			i = child;
+		}
+		start[i] = loopStart;
+		end[i] = loopEnd;
+		error[i] = loopError;
+		if(loopError < best) {
+			best = loopError;
+		}
+		publish();
+		return true;
+	}
+
+	/**
+	 * Returns the collected loops, best first.
+	 */
+	public Loop[] toArray() {
+		// heap sort a copy, so the collector stays usable
+		LoopCollector tmp = new LoopCollector(error.length);
+		System.arraycopy(start, 0, tmp.start, 0, size);
+		System.arraycopy(end, 0, tmp.end, 0, size);
+		System.arraycopy(error, 0, tmp.error, 0, size);
+		tmp.size = size;
+
+		Loop[] result = new Loop[size];
+		for(int i = size - 1; i >= 0; i--) {
+			result[i] = new Loop(tmp.start[0], tmp.end[0], tmp.error[0]);
+			tmp.removeRoot();
+		}
+		return result;
+	}
+
+	private void removeRoot() {
+		size--;
+		if(size == 0) {
+			return;
+		}
+		int loopStart = start[size];
+		int loopEnd = end[size];
+		float loopError = error[size];
+		int i = 0;
+		while(true) {
+			int child = 2 * i + 1;
+			if(child >= size) {
+				break;
+			}
+			if(child + 1 < size && compare(child + 1, child) > 0) {
+				child++;
+			}
+			if(compare(loopError, loopStart, loopEnd, child) >= 0) {
+				break;
+			}
+			set(i, child);
+			i = child;
+		}
+		start[i] = loopStart;
+		end[i] = loopEnd;
+		error[i] = loopError;
+	}
+
+	private void set(int dst, int src) {
+		start[dst] = start[src];
+		end[dst] = end[src];
+		error[dst] = error[src];
+	}
+
+	private int compare(int a, int b) {
+		return compare(error[a], start[a], end[a], b);
+	}
+
+	private int compare(float loopError, int loopStart, int loopEnd, int i) {
+		return compare(loopError, loopStart, loopEnd, error[i], start[i], end[i]);
+	}
+
+	static int compare(float errorA, int startA, int endA, float errorB, int startB, int endB) {
+		int cmp = Float.compare(errorA, errorB);
+		if(cmp != 0) {
+			return cmp;
+		}
+		cmp = Integer.compare(startA, startB);
+		if(cmp != 0) {
+			return cmp;
+		}
+		return Integer.compare(endA, endB);
+	}
+
+	static int compare(Loop a, Loop b) {
+		return compare(a.error, a.start, a.end, b.error, b.start, b.end);
+	}
+
+	/**
+	 * Merges the results of several collectors into the best count loops, best first.
+	 *
+	 * @return the merged loops or null if no collector contains any loop
+	 */
+	public static Loop[] merge(LoopCollector[] collectors, int count) {
+		Loop[][] runs = new Loop[collectors.length][];
+		int total = 0;
+		for(int i = 0; i < collectors.length; i++) {
+			runs[i] = collectors[i].toArray();
+			total += runs[i].length;
+		}
+
+		if(total == 0) {
+			return null;
+		}
+
+		// k-way merge of the sorted runs
+		Loop[] result = new Loop[Math.min(total, count)];
+		int[] pos = new int[runs.length];
+		for(int n = 0; n < result.length; n++) {
+			int best = -1;
+			for(int i = 0; i < runs.length; i++) {
+				if(pos[i] < runs[i].length &&
+						(best == -1 || compare(runs[i][pos[i]], runs[best][pos[best]]) < 0)) {
+					best = i;
+				}
+			}
+			result[n] = runs[best][pos[best]++];
+		}
+		return result;
+	}
+}
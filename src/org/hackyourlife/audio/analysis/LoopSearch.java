@@ -0,0 +1,209 @@
+package org.hackyourlife.audio.analysis;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.dsp.Filterbank;
+
+/**
+ * Controls a loop search: reports the progress, and stops the search when it is cancelled or when its time or work
+ * budget is used up. A stopped search does not fail, it returns the best loops among the candidates evaluated so
+ * far; {@link LoopSearch#isStopped()} tells whether the result is complete.
+ *
+ * The budgets apply to all searches run with the same instance, e.g. both passes of the advanced analysis; the time
+ * limit counts from the start of the first search. Cancellation and the budgets are checked after every block of
+ * {@link LoopSearch#BLOCK_SIZE} candidates, so a search stops shortly after the limit even for long rows.
+ *
+ * The search methods are the ones of {@link Autoloop}, {@link SpectraLoop}, {@link LoopTuner} and {@link Pyramid}
+ * with this instance as additional argument. An instance runs one search at a time.
+ */
+public class LoopSearch {
+	/**
+	 * number of candidates evaluated between two checks
+	 */
+	public static final int BLOCK_SIZE = 4096;
+
+	/**
+	 * minimum time between two progress reports in nanoseconds
+	 */
+	private static final long PROGRESS_INTERVAL = 100_000_000L;
+
+	/**
+	 * Receives the progress of a search. Called from the threads of the search, but never concurrently.
+	 */
+	public interface ProgressListener {
+		/**
+		 * @param fraction
+		 *                fraction of the candidates of the current search which were evaluated
+		 * @param bestError
+		 *                error of the best loop so far, or positive infinity if there is none yet
+		 */
+		void progress(double fraction, float bestError);
+	}
+
+	private ProgressListener listener;
+	private long timeLimit = 0;
+	private long workLimit = 0;
+
+	private volatile boolean cancelled = false;
+	private volatile boolean stopped = false;
+	private volatile long startTime = 0;
+
+	// all candidates of all searches
+	private final AtomicLong work = new AtomicLong();
+	// candidates of the current search
+	private final AtomicLong done = new AtomicLong();
+	private volatile long total;
+	private final AtomicInteger best = new AtomicInteger(Float.floatToIntBits(Float.POSITIVE_INFINITY));
+	private long lastReport;
+
+	public LoopSearch setProgressListener(ProgressListener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Limits the wall-clock time of all searches, 0 for no limit.
+	 */
+	public LoopSearch setTimeLimit(long time, TimeUnit unit) {
+		if(time < 0) {
+			throw new IllegalArgumentException("negative time limit");
+		}
+		timeLimit = unit.toNanos(time);
+		return this;
+	}
+
+	/**
+	 * Limits the number of candidates evaluated by all searches, 0 for no limit.
+	 */
+	public LoopSearch setWorkLimit(long candidates) {
+		if(candidates < 0) {
+			throw new IllegalArgumentException("negative work limit");
+		}
+		workLimit = candidates;
+		return this;
+	}
+
+	/**
+	 * Stops the search; it returns the best loops found so far. Can be called from any thread.
+	 */
+	public void cancel() {
+		cancelled = true;
+		stopped = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * Returns true if a search was stopped early, either by {@link LoopSearch#cancel()} or because a budget was used
+	 * up, which means its result only covers part of the candidates.
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Returns the number of candidates evaluated by all searches.
+	 */
+	public long getWork() {
+		return work.get();
+	}
+
+	/**
+	 * Returns the time since the start of the first search in nanoseconds.
+	 */
+	public long getElapsedTime() {
+		long t0 = startTime;
+		return t0 == 0 ? 0 : System.nanoTime() - t0;
+	}
+
+	public Loop[] autoloop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, SearchStatistics stats) throws InterruptedException {
+		return Autoloop.loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, engine, stats, this);
+	}
+
+	public Loop[] pyramid(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int levels, int regions, SearchStatistics stats) throws InterruptedException {
+		return Pyramid.loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, levels, regions, stats,
+				this);
+	}
+
+	public Loop[] spectraLoop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int fftSize, int stepSize, int windowType, int windowSize, int threadcnt, int format,
+			Filterbank filterbank, int engine) throws InterruptedException {
+		return SpectraLoop.loop(samples, skip, step, minLength, tailLength, loopcnt, fftSize, stepSize, windowType,
+				windowSize, threadcnt, format, filterbank, engine, this);
+	}
+
+	public Loop[] tune(AudioBuffer samples, int offset, int tailLength, int loopcnt, Loop[] structureLoops,
+			int threadcnt, int engine, SearchStatistics stats) throws InterruptedException {
+		return LoopTuner.loop(samples, offset, tailLength, loopcnt, structureLoops, threadcnt, engine, stats, this);
+	}
+
+	/**
+	 * Starts a search with the given number of candidates.
+	 */
+	synchronized void begin(long candidates) {
+		if(startTime == 0) {
+			startTime = System.nanoTime();
+		}
+		total = candidates;
+		done.set(0);
+		best.set(Float.floatToIntBits(Float.POSITIVE_INFINITY));
+		lastReport = 0;
+	}
+
+	/**
+	 * Returns true if the search has to stop now.
+	 */
+	boolean shouldStop() {
+		if(stopped) {
+			return true;
+		}
+		if((timeLimit > 0 && System.nanoTime() - startTime >= timeLimit) ||
+				(workLimit > 0 && work.get() >= workLimit)) {
+			stopped = true;
+		}
+		return stopped;
+	}
+
+	/**
+	 * Records evaluated candidates and the best error of the collector they were added to.
+	 */
+	void progress(long candidates, float bestError) {
+		work.addAndGet(candidates);
+		long n = done.addAndGet(candidates);
+		int bits = Float.floatToIntBits(bestError);
+		int current = best.get();
+		// errors are never negative, so the int order is the float order
+		while(bits >= 0 && bits < current && !best.compareAndSet(current, bits)) {
+			current = best.get();
+		}
+		if(listener != null) {
+			report(n, false);
+		}
+	}
+
+	/**
+	 * Ends the current search with a final progress report.
+	 */
+	void end() {
+		if(listener != null) {
+			report(done.get(), true);
+		}
+	}
+
+	private synchronized void report(long n, boolean force) {
+		long now = System.nanoTime();
+		if(!force && now - lastReport < PROGRESS_INTERVAL) {
+			return;
+		}
+		lastReport = now;
+		double fraction = total == 0 ? 1 : Math.min(n / (double) total, 1);
+		listener.progress(fraction, Float.intBitsToFloat(best.get()));
+	}
+}
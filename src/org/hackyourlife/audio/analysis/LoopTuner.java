@@ -1,145 +1,180 @@
 package org.hackyourlife.audio.analysis;
 
-import java.util.Arrays;
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import org.hackyourlife.audio.AudioBuffer;
 
 public class LoopTuner {
-	private static class Task {
-		private final int start;
-		private final int end;
-
-		public Task(int start, int end) {
-			this.start = start;
-			this.end = end;
-		}
-
-		public int getStart() {
-			return start;
-		}
-
-		public int getEnd() {
-			return end;
-		}
-	}
-
-	private static class ComputeThread extends Thread {
-		private final float[][] samples;
+	/**
+	 * One row per structural loop, one cell per end position in the search window around its end.
+	 */
+	private static class Search extends AnalysisExecutor.RowSearch {
+		private final AudioBuffer samples;
+		private final Loop[] structureLoops;
 		private final int offset;
 		private final int tailLength;
 		private final int maxlen;
-		private final Queue<Task> tasks;
-
-		private volatile Loop[] loops;
-
-		public ComputeThread(float[][] samples, int offset, int tailLength, int count, Queue<Task> tasks) {
+		private final int engine;
+		// null without phase filter
+		private final PhaseIndex phase;
+		// null without lower bound cascade
+		private final LowerBounds bounds;
+		private final ThreadLocal<int[]> ends;
+
+		public Search(AudioBuffer samples, Loop[] structureLoops, int offset, int tailLength, int engine,
+				PhaseIndex phase, LowerBounds bounds) {
 			this.samples = samples;
+			this.structureLoops = structureLoops;
 			this.offset = offset;
 			this.tailLength = tailLength;
-			this.tasks = tasks;
-			maxlen = samples[0].length - tailLength;
-			loops = new Loop[count];
+			this.engine = engine;
+			this.phase = phase;
+			this.bounds = bounds;
+			maxlen = samples.getLength() - tailLength;
+			if(phase != null) {
+				ends = ThreadLocal.withInitial(() -> new int[2 * offset]);
+			} else {
+				ends = null;
+			}
+		}
+
+		private int getSearchStart(int row) {
+			return structureLoops[row].end - offset;
 		}
 
 		@Override
-		public void run() {
-			Loop[] best = new Loop[loops.length];
-			try {
-				while(!tasks.isEmpty()) {
-					Task task = tasks.remove();
-					int start = task.getStart();
-					int structureEnd = task.getEnd();
-					int searchStart = structureEnd - offset;
-					int searchEnd = structureEnd + offset;
-					if(searchEnd > maxlen) {
-						searchEnd = maxlen;
-					}
-					for(int end = searchStart; end < searchEnd; end++) {
-						float error = estimate(samples, start, end, tailLength);
-						int worst = -1;
-						float worsterror = -Float.MAX_VALUE;
-						for(int i = 0; i < best.length; i++) {
-							if(best[i] == null) {
-								best[i] = new Loop(start, end, error);
-								break;
-							} else if(best[i].error > worsterror) {
-								worst = i;
-								worsterror = best[i].error;
-							}
-						}
-						if(worst != -1) {
-							best[worst] = new Loop(start, end, error);
-						}
+		public int getCells(int row) {
+			int structureEnd = structureLoops[row].end;
+			int searchEnd = Math.min(structureEnd + offset, maxlen);
+			return Math.max(searchEnd - getSearchStart(row), 0);
+		}
+
+		@Override
+		public void compute(int row, int from, int to, LoopCollector loops, SearchStatistics stats) {
+			int start = structureLoops[row].start;
+			int searchStart = getSearchStart(row);
+			if(from >= to) {
+				return;
+			}
+			long perCandidate = (long) tailLength * samples.getChannels();
+			stats.candidates(to - from, perCandidate);
+			if(phase != null) {
+				// only the phase compatible ends; if there are none, the whole window is searched, so every
+				// structural loop keeps its candidates
+				int[] list = ends.get();
+				int count = phase.ends(start, searchStart + from, searchStart + to, list);
+				if(count == 0) {
+					for(int end = searchStart + from; end < searchStart + to; end++) {
+						evaluate(start, end, loops, stats);
 					}
+					return;
+				}
+				stats.filtered(to - from - count);
+				stats.skipped((to - from - count) * perCandidate);
+				for(int i = 0; i < count; i++) {
+					evaluate(start, list[i], loops, stats);
 				}
-			} catch(NoSuchElementException e) {
-				// tasks.remove() failed, swallow
+				return;
+			}
+			for(int end = searchStart + from; end < searchStart + to; end++) {
+				evaluate(start, end, loops, stats);
 			}
-			this.loops = best;
 		}
 
-		public Loop[] getLoops() {
-			return loops;
+		private void evaluate(int start, int end, LoopCollector loops, SearchStatistics stats) {
+			switch(engine) {
+			case Autoloop.BOUNDED: {
+				float threshold = loops.threshold();
+				if(bounds != null && bounds.reject(start, end, threshold, stats)) {
+					stats.skipped((long) tailLength * samples.getChannels());
+					break;
+				}
+				float error = estimate(samples, start, end, tailLength, threshold, stats);
+				if(error <= threshold) {
+					loops.add(start, end, error);
+				}
+				break;
+			}
+			case Autoloop.VECTOR: {
+				float threshold = loops.threshold();
+				if(bounds != null && bounds.reject(start, end, threshold, stats)) {
+					stats.skipped((long) tailLength * samples.getChannels());
+					break;
+				}
+				float error = Autoloop.estimateVector(samples, start, end, tailLength, threshold, stats);
+				if(error <= threshold) {
+					loops.add(start, end, error);
+				}
+				break;
+			}
+			default: {
+				float error = estimate(samples, start, end, tailLength);
+				loops.add(start, end, error);
+			}
+			}
 		}
 	}
 
 	public static Loop[] loop(float[][] samples, int offset, int tailLength, int loopcnt, Loop[] structureLoops,
 			int threadcnt) throws InterruptedException {
-		ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
-		ComputeThread[] threads = new ComputeThread[threadcnt];
+		return loop(samples, offset, tailLength, loopcnt, structureLoops, threadcnt, Autoloop.DIRECT, null);
+	}
 
-		for(Loop loop : structureLoops) {
-			tasks.add(new Task(loop.start, loop.end));
-		}
+	/**
+	 * Tunes the structural loops. The engine is one of the engines of {@link Autoloop}; since the search windows
+	 * are small, {@link Autoloop#CORRELATION} is treated like {@link Autoloop#DIRECT}. So is
+	 * {@link Autoloop#DIAGONAL}: the start of a structural loop is fixed, so its candidates lie on a row of the
+	 * error matrix, not on a diagonal.
+	 */
+	public static Loop[] loop(float[][] samples, int offset, int tailLength, int loopcnt, Loop[] structureLoops,
+			int threadcnt, int engine, SearchStatistics stats) throws InterruptedException {
+		return loop(AudioBuffer.interleaved(samples), offset, tailLength, loopcnt, structureLoops, threadcnt, engine,
+				stats);
+	}
 
-		// spawn threads
-		for(int i = 0; i < threadcnt; i++) {
-			threads[i] = new ComputeThread(samples, offset, tailLength, loopcnt, tasks);
-			threads[i].start();
-		}
+	public static Loop[] loop(AudioBuffer samples, int offset, int tailLength, int loopcnt, Loop[] structureLoops,
+			int threadcnt) throws InterruptedException {
+		return loop(samples, offset, tailLength, loopcnt, structureLoops, threadcnt, Autoloop.DIRECT, null);
+	}
 
-		// wait for results
-		for(Thread t : threads) {
-			t.join();
-		}
+	public static Loop[] loop(AudioBuffer samples, int offset, int tailLength, int loopcnt, Loop[] structureLoops,
+			int threadcnt, int engine, SearchStatistics stats) throws InterruptedException {
+		return loop(samples, offset, tailLength, loopcnt, structureLoops, threadcnt, engine, stats, null);
+	}
 
-		// collect results
-		Loop[] loops = new Loop[loopcnt * threadcnt];
-		int i = 0;
-		for(ComputeThread t : threads) {
-			Loop[] l = t.getLoops();
-			System.arraycopy(l, 0, loops, i, l.length);
-			i += l.length;
-		}
+	/**
+	 * @param control
+	 *                reports the progress and stops the search early, may be null; see {@link LoopSearch}
+	 */
+	public static Loop[] loop(AudioBuffer samples, int offset, int tailLength, int loopcnt, Loop[] structureLoops,
+			int threadcnt, int engine, SearchStatistics stats, LoopSearch control) throws InterruptedException {
+		return loop(samples, offset, tailLength, loopcnt, structureLoops, threadcnt, engine, null, stats, control);
+	}
 
-		// remove null results
-		int nonnull = 0;
-		for(Loop loop : loops) {
-			if(loop != null) {
-				nonnull++;
-			}
-		}
+	/**
+	 * @param phase
+	 *                only evaluate the ends which are phase compatible with the start of their structural loop, see
+	 *                {@link PhaseIndex}, or all ends of its window if there are none; null to evaluate all ends
+	 */
+	public static Loop[] loop(AudioBuffer samples, int offset, int tailLength, int loopcnt, Loop[] structureLoops,
+			int threadcnt, int engine, PhaseIndex phase, SearchStatistics stats, LoopSearch control)
+			throws InterruptedException {
+		return loop(samples, offset, tailLength, loopcnt, structureLoops, threadcnt, engine, phase, false, stats,
+				control);
+	}
 
-		Loop[] result;
-		if(nonnull == 0) {
-			return null;
-		} else if(nonnull != loops.length) {
-			result = new Loop[nonnull];
-			int j;
-			for(i = 0, j = 0; i < loops.length; i++) {
-				if(loops[i] != null) {
-					result[j++] = loops[i];
-				}
-			}
-		} else {
-			result = loops;
+	/**
+	 * @param cascade
+	 *                test every candidate with the {@link LowerBounds} cascade before evaluating it; only used by
+	 *                {@link Autoloop#BOUNDED} and {@link Autoloop#VECTOR}, gives the same results
+	 */
+	public static Loop[] loop(AudioBuffer samples, int offset, int tailLength, int loopcnt, Loop[] structureLoops,
+			int threadcnt, int engine, PhaseIndex phase, boolean cascade, SearchStatistics stats,
+			LoopSearch control) throws InterruptedException {
+		LowerBounds bounds = null;
+		if(cascade && (engine == Autoloop.BOUNDED || engine == Autoloop.VECTOR)) {
+			bounds = new LowerBounds(samples, new EnergyIndex(samples), tailLength);
 		}
-
-		// sort result according to score
-		Arrays.sort(result);
-
-		return result;
+		Search search = new Search(samples, structureLoops, offset, tailLength, engine, phase, bounds);
+		return AnalysisExecutor.run(search, structureLoops.length, loopcnt, threadcnt, stats, control);
 	}
 
 	public static float estimate(float[][] samples, int start, int end, int tailLength) {
@@ -158,4 +193,17 @@ public class LoopTuner {
 		}
 		return error;
 	}
+
+	public static float estimate(AudioBuffer samples, int start, int end, int tailLength) {
+		return Autoloop.estimate(samples, start, end, tailLength);
+	}
+
+	/**
+	 * Bounded variant of {@link LoopTuner#estimate(AudioBuffer, int, int, int)}, see
+	 * {@link Autoloop#estimate(AudioBuffer, int, int, int, float, SearchStatistics)}.
+	 */
+	public static float estimate(AudioBuffer samples, int start, int end, int tailLength, float threshold,
+			SearchStatistics stats) {
+		return Autoloop.estimate(samples, start, end, tailLength, threshold, stats);
+	}
 }
@@ -0,0 +1,149 @@
+package org.hackyourlife.audio.analysis;
+
+import org.hackyourlife.audio.AudioBuffer;
+
+/**
+ * Cascade of lower bounds of the loop error, which rejects candidates that cannot beat the current threshold before
+ * their tail is compared. The bounds run in the order of their cost:
+ *
+ * 1. energy: per channel, (|a| - |b|)^2 <= |a - b|^2 for the start window a and end window b, with the norms from
+ * the {@link EnergyIndex}; constant time per candidate.
+ *
+ * 2. sketch: the windows are split into blocks of {@link LowerBounds#SKETCH_BLOCK} samples, and by Cauchy-Schwarz,
+ * the squared error of a block is at least n * (mean(a) - mean(b))^2. The block sums are precomputed for every
+ * position, so this compares a 16 times downsampled sketch of the windows, and it stops as soon as the threshold is
+ * exceeded.
+ *
+ * Candidates which survive the cascade are evaluated as usual. The bounds are computed in double precision and only
+ * reject candidates whose bound is clearly above the threshold, so the rounding of the float error cannot make a
+ * rejected candidate part of the result; the results are the same as without the cascade.
+ */
+public class LowerBounds {
+	public static final int ENERGY = 0;
+	public static final int SKETCH = 1;
+	public static final int STAGES = 2;
+
+	public static final int SKETCH_BLOCK = 16;
+	private static final int SKETCH_SHIFT = 4;
+	// the sketch bound is compared to the threshold every this many blocks
+	private static final int CHECK_INTERVAL = 4;
+
+	// relative margin above the threshold, covers the rounding of the float errors
+	private static final double MARGIN = 1e-3;
+	// absolute margin per compared sample
+	private static final double EPSILON = 1e-12;
+
+	private final EnergyIndex energy;
+	private final int channels;
+	private final int tailLength;
+	private final int blocks;
+	private final double slack;
+	// per channel: sum of the samples [i, i + SKETCH_BLOCK), see getIndex
+	private final double[][] sketch;
+	private final int rows;
+
+	public LowerBounds(AudioBuffer samples, EnergyIndex energy, int tailLength) {
+		this.energy = energy;
+		this.tailLength = tailLength;
+		channels = samples.getChannels();
+		blocks = tailLength / SKETCH_BLOCK;
+		slack = EPSILON * tailLength * channels;
+
+		int length = samples.getLength();
+		int positions = Math.max(length - SKETCH_BLOCK + 1, 0);
+		float[] data = samples.getData();
+		int stride = samples.getFrameStride();
+		rows = (positions + SKETCH_BLOCK - 1) >> SKETCH_SHIFT;
+		sketch = new double[channels][rows << SKETCH_SHIFT];
+		for(int ch = 0; ch < channels; ch++) {
+			double[] sums = sketch[ch];
+			int off = samples.offset(ch, 0);
+			for(int i = 0; i < positions; i++) {
+				// summed from scratch, so equal windows have exactly equal sums
+				double sum = 0;
+				for(int j = 0, p = off + i * stride; j < SKETCH_BLOCK; j++, p += stride) {
+					sum += data[p];
+				}
+				sums[getIndex(i)] = sum;
+			}
+		}
+	}
+
+	/**
+	 * The block sums are stored by position modulo the block size, so the blocks of a window are consecutive.
+	 */
+	private int getIndex(int pos) {
+		return (pos & (SKETCH_BLOCK - 1)) * rows + (pos >> SKETCH_SHIFT);
+	}
+
+	public int getTailLength() {
+		return tailLength;
+	}
+
+	/**
+	 * Returns a lower bound of the error of (start, end) from the energies of the windows.
+	 */
+	public double energyBound(int start, int end) {
+		double bound = 0;
+		for(int ch = 0; ch < channels; ch++) {
+			double a = Math.sqrt(energy.energy(ch, start, tailLength));
+			double b = Math.sqrt(energy.energy(ch, end, tailLength));
+			bound += (a - b) * (a - b);
+		}
+		return bound;
+	}
+
+	/**
+	 * Returns a lower bound of the error of (start, end) from the block means of the windows. The summation stops
+	 * as soon as the bound exceeds the limit.
+	 */
+	public double sketchBound(int start, int end, double limit) {
+		double bound = 0;
+		double max = limit * SKETCH_BLOCK;
+		int a = getIndex(start);
+		int b = getIndex(end);
+		for(int ch = 0; ch < channels; ch++) {
+			double[] sums = sketch[ch];
+			for(int i = 0; i < blocks;) {
+				int n = Math.min(i + CHECK_INTERVAL, blocks);
+				for(; i < n; i++) {
+					double d = sums[a + i] - sums[b + i];
+					bound += d * d;
+				}
+				if(bound > max) {
+					return bound / SKETCH_BLOCK;
+				}
+			}
+		}
+		return bound / SKETCH_BLOCK;
+	}
+
+	/**
+	 * Runs the cascade, returns true if the error of (start, end) is certainly above the threshold.
+	 *
+	 * @param stats
+	 *                receives the rejections per stage, may be null
+	 */
+	public boolean reject(int start, int end, float threshold, SearchStatistics stats) {
+		if(threshold == Float.POSITIVE_INFINITY) {
+			return false;
+		}
+		double limit = threshold * (1 + MARGIN) + slack;
+		if(stats != null) {
+			stats.tested(1);
+		}
+		if(energyBound(start, end) > limit) {
+			if(stats != null) {
+				stats.rejected(ENERGY, 1);
+			}
+			return true;
+		}
+		if(sketchBound(start, end, limit) > limit) {
+			if(stats != null) {
+				stats.rejected(SKETCH, 1);
+			}
+			return true;
+		}
+		return false;
+	}
+}
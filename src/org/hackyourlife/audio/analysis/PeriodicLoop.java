@@ -0,0 +1,311 @@
+package org.hackyourlife.audio.analysis;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.dsp.FFT;
+
+/**
+ * Loop search for pitched material. A good loop of a pitched sound is almost always close to an integer multiple of
+ * its fundamental period, so instead of every end position, only the ends within a small tolerance of
+ * start + k * period are evaluated. The period is estimated once from the autocorrelation of the signal; if the
+ * signal has no clear period, the full search of
+ * {@link Autoloop#loop(AudioBuffer, int, int, int, int, int, int, int, double, SearchStatistics, LoopSearch)} is
+ * used instead.
+ *
+ * The period is refined on the autocorrelation peak of the largest multiple of the period within the analysis
+ * window, so its error is a fraction of a sample divided by the number of periods in the window. The tolerance
+ * around k * period grows with this error, so long loops do not drift out of their windows.
+ */
+public class PeriodicLoop {
+	/**
+	 * minimum normalized autocorrelation of the period; signals with a lower peak are treated as unpitched
+	 */
+	public static final double CLARITY = 0.8;
+
+	// the first peak with at least this fraction of the highest peak is the period, not one of its multiples
+	private static final double PEAK_RATIO = 0.9;
+	private static final int MAX_WINDOW = 65536;
+	private static final int MIN_WINDOW = 256;
+
+	/**
+	 * One row per start position, one cell per end offset from
+	 * {@link PeriodicLoop#offsets(double, int, int, int, int)}; the offsets are relative to the start, so all rows
+	 * share them and only the number of offsets which fit in front of the tail differs.
+	 */
+	private static class Search extends AnalysisExecutor.RowSearch {
+		private final AudioBuffer samples;
+		private final int skip;
+		private final int step;
+		private final int tailLength;
+		private final int maxlen;
+		private final int[] offsets;
+		private final boolean vector;
+		private final EnergyIndex energy;
+		// minimum energy of a window, 0 without loudness gate
+		private final double minEnergy;
+
+		public Search(AudioBuffer samples, int skip, int step, int tailLength, int[] offsets, int engine,
+				EnergyIndex energy, double gate) {
+			this.samples = samples;
+			this.skip = skip;
+			this.step = step;
+			this.tailLength = tailLength;
+			this.offsets = offsets;
+			this.energy = energy;
+			vector = engine == Autoloop.VECTOR;
+			minEnergy = gate * tailLength * samples.getChannels();
+			maxlen = samples.getLength() - tailLength;
+		}
+
+		@Override
+		public int getCells(int row) {
+			int start = skip + row * step;
+			// number of offsets below maxlen - start
+			int lo = 0;
+			int hi = offsets.length;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(offsets[mid] < maxlen - start) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		@Override
+		public void compute(int row, int from, int to, LoopCollector loops, SearchStatistics stats) {
+			if(from >= to) {
+				return;
+			}
+			int start = skip + row * step;
+			long perCandidate = (long) tailLength * samples.getChannels();
+			stats.candidates(to - from, perCandidate);
+			if(isGated(start)) {
+				stats.gated(to - from);
+				stats.skipped((to - from) * perCandidate);
+				return;
+			}
+			for(int i = from; i < to; i++) {
+				int end = start + offsets[i];
+				if(isGated(end)) {
+					stats.gated(1);
+					stats.skipped(perCandidate);
+					continue;
+				}
+				float threshold = loops.threshold();
+				float error;
+				if(vector) {
+					error = Autoloop.estimateVector(samples, start, end, tailLength, threshold, stats);
+				} else {
+					error = Autoloop.estimate(samples, start, end, tailLength, threshold, stats);
+				}
+				if(error <= threshold) {
+					loops.add(start, end, error);
+				}
+			}
+		}
+
+		private boolean isGated(int pos) {
+			return minEnergy > 0 && energy.energy(pos, tailLength) < minEnergy;
+		}
+	}
+
+	private static int getWindowSize(int length) {
+		int size = MAX_WINDOW;
+		while(size > length) {
+			size /= 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the sub-sample position of the maximum of the parabola through the values around the peak at i.
+	 */
+	private static double interpolate(double[] r, int i) {
+		double a = r[i - 1];
+		double b = r[i];
+		double c = r[i + 1];
+		double d = a - 2 * b + c;
+		if(d >= 0) {
+			return i;
+		}
+		return i + 0.5 * (a - c) / d;
+	}
+
+	/**
+	 * Estimates the fundamental period of the samples after skip from the autocorrelation of the mono mix.
+	 *
+	 * @return the period in samples, or 0 if the signal has no clear period
+	 */
+	public static double period(AudioBuffer samples, int skip) {
+		int length = samples.getLength() - skip;
+		int size = getWindowSize(length);
+		if(size < MIN_WINDOW) {
+			return 0;
+		}
+
+		// mono mix of the middle part, without DC
+		float[] data = samples.getData();
+		int nch = samples.getChannels();
+		int stride = samples.getFrameStride();
+		int pos = skip + (length - size) / 2;
+		double[] re = new double[2 * size];
+		double[] im = new double[2 * size];
+		for(int ch = 0; ch < nch; ch++) {
+			for(int i = 0, off = samples.offset(ch, pos); i < size; i++, off += stride) {
+				re[i] += data[off];
+			}
+		}
+		double mean = 0;
+		for(int i = 0; i < size; i++) {
+			mean += re[i];
+		}
+		mean /= size;
+		for(int i = 0; i < size; i++) {
+			re[i] -= mean;
+		}
+
+		// autocorrelation: inverse transform of the power spectrum, zero padded so it does not wrap around
+		FFT.fft(re, im, FFT.FORWARD);
+		for(int i = 0; i < re.length; i++) {
+			re[i] = re[i] * re[i] + im[i] * im[i];
+			im[i] = 0;
+		}
+		FFT.fft(re, im, FFT.REVERSE);
+		if(re[0] <= 0) {
+			return 0;
+		}
+
+		// normalized and unbiased: 1 at lag 0 and for a perfectly periodic signal at multiples of its period
+		int maxLag = size / 2;
+		double[] r = new double[maxLag + 2];
+		for(int lag = 0; lag < r.length; lag++) {
+			r[lag] = re[lag] / re[0] * size / (size - lag);
+		}
+
+		// skip the peak around lag 0
+		int first = 1;
+		while(first < maxLag && r[first] > 0) {
+			first++;
+		}
+		double best = 0;
+		for(int lag = first; lag <= maxLag / 2; lag++) {
+			best = Math.max(best, r[lag]);
+		}
+		if(best < CLARITY) {
+			return 0;
+		}
+
+		double period = 0;
+		for(int lag = Math.max(first, 1); lag <= maxLag / 2; lag++) {
+			if(r[lag] >= PEAK_RATIO * best && r[lag] >= r[lag - 1] && r[lag] >= r[lag + 1]) {
+				period = interpolate(r, lag);
+				break;
+			}
+		}
+		if(period == 0) {
+			return 0;
+		}
+
+		// refine on the peak of the largest multiple within the window
+		int k = (int) (maxLag / period);
+		if(k > 1) {
+			int center = (int) Math.round(k * period);
+			int radius = Math.max((int) (period / 4), 1);
+			int peak = center;
+			for(int lag = Math.max(center - radius, 1); lag <= Math.min(center + radius, maxLag); lag++) {
+				if(r[lag] > r[peak]) {
+					peak = lag;
+				}
+			}
+			if(r[peak] >= CLARITY / 2) {
+				period = interpolate(r, peak) / k;
+			}
+		}
+		return period;
+	}
+
+	/**
+	 * Returns the sorted end offsets relative to the start which are evaluated: all offsets in
+	 * [minLength, maxOffset) within tolerance of a multiple of the period. The tolerance grows by the possible error
+	 * of the period estimate for every period; where the windows of neighboring multiples overlap, all offsets are
+	 * evaluated.
+	 */
+	private static int[] offsets(double period, int tolerance, int minLength, int maxOffset, int window) {
+		// the period is refined on a peak at about window / 2; assume an error of half a sample there
+		double error = 0.5 * period / (window / 2);
+		int count = 0;
+		int[] result = new int[16];
+		int next = minLength;
+		for(long k = Math.max((long) ((minLength - tolerance) / period), 1); next < maxOffset; k++) {
+			double center = k * period;
+			int slack = tolerance + (int) Math.ceil(k * error);
+			int from = Math.max((int) Math.ceil(center - slack), next);
+			int to = Math.min((int) Math.floor(center + slack) + 1, maxOffset);
+			if(center - slack >= maxOffset) {
+				break;
+			}
+			for(int offset = from; offset < to; offset++) {
+				if(count == result.length) {
+					int[] tmp = new int[result.length * 2];
+					System.arraycopy(result, 0, tmp, 0, count);
+					result = tmp;
+				}
+				result[count++] = offset;
+			}
+			next = Math.max(next, to);
+		}
+		int[] tmp = new int[count];
+		System.arraycopy(result, 0, tmp, 0, count);
+		return tmp;
+	}
+
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, int tolerance, double gate, SearchStatistics stats, LoopSearch control)
+			throws InterruptedException {
+		double period = period(samples, skip);
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, engine, period, tolerance, gate,
+				stats, control);
+	}
+
+	/**
+	 * Searches loops whose length is within tolerance samples of a multiple of the period. Every candidate is
+	 * evaluated like with {@link Autoloop#BOUNDED}, or {@link Autoloop#VECTOR} with that engine; the other engines
+	 * need all ends of a start and are treated like {@link Autoloop#BOUNDED}.
+	 *
+	 * @param period
+	 *                the period in samples, see {@link PeriodicLoop#period(AudioBuffer, int)}; with a period of 0,
+	 *                all ends are evaluated by {@link Autoloop}
+	 * @param tolerance
+	 *                maximum distance of an end from start + k * period in samples
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int engine, double period, int tolerance, double gate, SearchStatistics stats,
+			LoopSearch control) throws InterruptedException {
+		if(tolerance < 0) {
+			throw new IllegalArgumentException("negative tolerance");
+		}
+		if(period <= 0) {
+			return Autoloop.loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, engine, gate,
+					stats, control);
+		}
+
+		int maxlen = samples.getLength() - tailLength - skip;
+		int starts = 0;
+		if(maxlen > skip) {
+			starts = (int) ((maxlen - skip + (long) step - 1) / step);
+		}
+
+		int window = getWindowSize(samples.getLength() - skip);
+		int[] ends = offsets(period, tolerance, minLength, samples.getLength() - tailLength - skip, window);
+
+		EnergyIndex energy = null;
+		if(gate > 0) {
+			energy = new EnergyIndex(samples);
+		}
+
+		Search search = new Search(samples, skip, step, tailLength, ends, engine, energy, gate);
+		return AnalysisExecutor.run(search, starts, loopcnt, threadcnt, stats, control);
+	}
+}
@@ -0,0 +1,147 @@
+package org.hackyourlife.audio.analysis;
+
+import java.util.Arrays;
+
+import org.hackyourlife.audio.AudioBuffer;
+
+/**
+ * Index of the sample value and slope of every position, which gives the loop ends that are phase compatible with a
+ * start: a loop can only have a small error if the first samples after its end continue the start, so its value and
+ * slope have to be close to the ones at the start in every channel. Comparing two bucket numbers is far cheaper than
+ * comparing the tail, so the index is a pre-filter for the loop search.
+ *
+ * Values (the samples are normalized to a peak of 1) and slopes (the difference to the sample 4 positions later,
+ * relative to its RMS) are quantized to {@link PhaseIndex#VALUE_BUCKETS} and {@link PhaseIndex#SLOPE_BUCKETS}
+ * buckets per channel; the middle value buckets hold the zero crossings, split into rising and falling ones by the
+ * slope. A position is compatible if its
+ * buckets differ by at most one from the ones of the start in every channel, so every end whose value and slope
+ * differ by less than a bucket width always passes. The positions of the first channel are sorted by bucket, so a
+ * query only touches the positions of the neighboring buckets instead of the whole range.
+ */
+public class PhaseIndex {
+	public static final int VALUE_BUCKETS = 32;
+	public static final int SLOPE_BUCKETS = 8;
+	// the slope buckets span this many RMS slopes in each direction
+	private static final double SLOPE_RANGE = 4;
+	// distance of the samples whose difference is the slope; over a single sample, the slope of a noisy signal is
+	// mostly noise
+	private static final int SLOPE_SPAN = 4;
+
+	private final int channels;
+	private final int length;
+	// per channel: value bucket * SLOPE_BUCKETS + slope bucket of every position
+	private final short[][] codes;
+	// positions of the first channel sorted by bucket, bucket i at [first[i], first[i + 1])
+	private final int[] positions;
+	private final int[] first;
+
+	public PhaseIndex(AudioBuffer samples) {
+		channels = samples.getChannels();
+		length = samples.getLength();
+		codes = new short[channels][length];
+
+		float[] data = samples.getData();
+		int stride = samples.getFrameStride();
+		for(int ch = 0; ch < channels; ch++) {
+			int off = samples.offset(ch, 0);
+			float[] slopes = new float[length];
+			double sum = 0;
+			for(int i = 0; i < length; i++) {
+				// forward difference, backward at the end of the samples
+				int j = Math.min(i + SLOPE_SPAN, length - 1);
+				int k = Math.max(j - SLOPE_SPAN, 0);
+				float slope = data[off + j * stride] - data[off + k * stride];
+				slopes[i] = slope;
+				sum += slope * slope;
+			}
+			double rms = length > 0 ? Math.sqrt(sum / length) : 0;
+			double scale = rms > 0 ? SLOPE_BUCKETS / (2 * SLOPE_RANGE * rms) : 0;
+			short[] code = codes[ch];
+			for(int i = 0; i < length; i++) {
+				float x = data[off + i * stride];
+				float slope = slopes[i];
+				int v = clamp((int) Math.floor((x + 1) * (VALUE_BUCKETS / 2)), VALUE_BUCKETS);
+				int s = clamp((int) Math.floor(slope * scale) + SLOPE_BUCKETS / 2, SLOPE_BUCKETS);
+				code[i] = (short) (v * SLOPE_BUCKETS + s);
+			}
+		}
+
+		// counting sort of the positions of the first channel
+		int buckets = VALUE_BUCKETS * SLOPE_BUCKETS;
+		first = new int[buckets + 1];
+		positions = new int[length];
+		if(channels > 0) {
+			for(short c : codes[0]) {
+				first[c + 1]++;
+			}
+			for(int i = 0; i < buckets; i++) {
+				first[i + 1] += first[i];
+			}
+			int[] fill = Arrays.copyOf(first, buckets);
+			for(int i = 0; i < length; i++) {
+				positions[fill[codes[0][i]]++] = i;
+			}
+		}
+	}
+
+	private static int clamp(int bucket, int count) {
+		return Math.max(0, Math.min(bucket, count - 1));
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns true if the value and slope at end are within one bucket of the ones at start in every channel.
+	 */
+	public boolean isCompatible(int start, int end) {
+		for(int ch = 0; ch < channels; ch++) {
+			int a = codes[ch][start];
+			int b = codes[ch][end];
+			if(Math.abs(a / SLOPE_BUCKETS - b / SLOPE_BUCKETS) > 1 ||
+					Math.abs(a % SLOPE_BUCKETS - b % SLOPE_BUCKETS) > 1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Collects the ends in [from, to) which are compatible with start in ascending order.
+	 *
+	 * @param ends
+	 *                receives the ends, must have room for to - from entries
+	 * @return the number of ends
+	 */
+	public int ends(int start, int from, int to, int[] ends) {
+		if(from >= to || channels == 0) {
+			return 0;
+		}
+		int code = codes[0][start];
+		int v = code / SLOPE_BUCKETS;
+		int s = code % SLOPE_BUCKETS;
+		int count = 0;
+		for(int vi = Math.max(v - 1, 0); vi <= Math.min(v + 1, VALUE_BUCKETS - 1); vi++) {
+			for(int si = Math.max(s - 1, 0); si <= Math.min(s + 1, SLOPE_BUCKETS - 1); si++) {
+				int bucket = vi * SLOPE_BUCKETS + si;
+				int lo = Arrays.binarySearch(positions, first[bucket], first[bucket + 1], from);
+				if(lo < 0) {
+					lo = -lo - 1;
+				}
+				for(int i = lo; i < first[bucket + 1] && positions[i] < to; i++) {
+					int end = positions[i];
+					if(channels == 1 || isCompatible(start, end)) {
+						ends[count++] = end;
+					}
+				}
+			}
+		}
+		Arrays.sort(ends, 0, count);
+		return count;
+	}
+}
@@ -1,9 +1,9 @@
 package org.hackyourlife.audio.analysis;
 
-import java.util.Arrays;
-
+import org.hackyourlife.audio.AudioBuffer;
 import org.hackyourlife.audio.SampleConverter;
 import org.hackyourlife.audio.dsp.FFT;
+import org.hackyourlife.audio.dsp.FFTPlan;
 
 public class PitchEstimator {
 	public static double getHz(int n, int fftSize, int sampleRate) {
@@ -25,8 +25,23 @@ public class PitchEstimator {
 		return estimate(tmp, sampleRate);
 	}
 
+	public static double estimate(AudioBuffer samples, int sampleRate) {
+		float[] data = samples.getData();
+		int nch = samples.getChannels();
+		double[] mono = new double[samples.getLength()];
+		for(int ch = 0; ch < nch; ch++) {
+			for(int i = 0, off = samples.offset(ch, 0); i < mono.length; i++, off += samples.getFrameStride()) {
+				mono[i] += data[off] / (double) nch;
+			}
+		}
+		return estimate(mono, sampleRate);
+	}
+
 	public static double estimate(double[][] samples, int sampleRate) {
-		double[] mono = SampleConverter.mono(samples);
+		return estimate(SampleConverter.mono(samples), sampleRate);
+	}
+
+	private static double estimate(double[] mono, int sampleRate) {
 		if(mono.length < 128) {
 			throw new IllegalArgumentException("not enough samples");
 		}
@@ -39,7 +54,6 @@ public class PitchEstimator {
 
 		double[] data = new double[fftSize];
 		double[] window = FFT.makeWindow(FFT.HANN, fftSize, fftSize);
-		double[] phase = new double[fftSize];
 
 		int startsample = (mono.length - fftSize) / 2;
 		if(startsample + fftSize > mono.length) {
@@ -47,12 +61,11 @@ public class PitchEstimator {
 		}
 
 		// prepare buffers
-		Arrays.fill(phase, 0);
 		System.arraycopy(mono, startsample, data, 0, fftSize);
 
 		// perform FFT
 		FFT.applyWindow(data, window);
-		FFT.magnitudePhaseFFT(data, phase);
+		FFTPlan.get(fftSize).magnitudeSpectrum(data);
 
 		// find fundamental
 		// step 1: get max intensity
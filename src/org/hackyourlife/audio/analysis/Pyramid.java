@@ -0,0 +1,216 @@
+package org.hackyourlife.audio.analysis;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.dsp.Decimator;
+
+/**
+ * Coarse-to-fine loop search. The signal is decimated by 2 for every level; the full search of
+ * {@link Autoloop#loop(AudioBuffer, int, int, int, int, int, int, int, SearchStatistics)} only runs on the coarsest
+ * level, where it is 4^levels times cheaper. Every finer level only checks the ends within {@link Pyramid#RADIUS}
+ * samples around the candidates of the previous level, and the last level is the original signal, so the errors of
+ * the result are exactly the errors of the full search.
+ *
+ * The start positions are the same as in the full search. On the coarse levels, only ends which are a local
+ * minimum of the error are kept as candidate regions, so the candidates are not wasted on the neighbors of a single
+ * good loop. The number of regions which are refined per level controls the recall: with more regions, a loop which
+ * only ranks well at full resolution is less likely to be missed.
+ */
+public class Pyramid {
+	/**
+	 * number of samples around a candidate end which are checked on the next finer level
+	 */
+	public static final int RADIUS = 4;
+
+	/**
+	 * Full search on a decimated level, one row per start position, one cell per end position. Only ends which are a
+	 * local minimum of the error are collected.
+	 */
+	private static class Search extends AnalysisExecutor.RowSearch {
+		private final AudioBuffer samples;
+		private final int skip;
+		private final int step;
+		private final int shift;
+		private final int minLength;
+		private final int tailLength;
+		private final int maxlen;
+
+		public Search(AudioBuffer samples, int skip, int step, int shift, int minLength, int tailLength) {
+			this.samples = samples;
+			this.skip = skip;
+			this.step = step;
+			this.shift = shift;
+			this.minLength = minLength;
+			this.tailLength = tailLength;
+			maxlen = samples.getLength() - tailLength;
+		}
+
+		@Override
+		public int getCells(int row) {
+			int first = ((skip + row * step) >> shift) + minLength;
+			return Math.max(maxlen - first, 0);
+		}
+
+		@Override
+		public void compute(int row, int from, int to, LoopCollector loops, SearchStatistics stats) {
+			if(from >= to) {
+				return;
+			}
+			int start = skip + row * step;
+			int s = start >> shift;
+			int first = s + minLength;
+			int cells = maxlen - first;
+			stats.candidates(to - from, (long) tailLength * samples.getChannels());
+
+			// errors of end - 1, end and end + 1; aborted errors are above the threshold, which keeps the local
+			// minimum test correct for all accepted candidates. The neighbors outside of [from, to) are only
+			// evaluated for the test.
+			float before = Float.POSITIVE_INFINITY;
+			if(from > 0) {
+				before = Autoloop.estimate(samples, s, first + from - 1, tailLength, loops.threshold(), null);
+			}
+			float current = Autoloop.estimate(samples, s, first + from, tailLength, loops.threshold(), stats);
+			for(int end = first + from; end < first + to; end++) {
+				boolean minimum;
+				float next = Float.POSITIVE_INFINITY;
+				if(end + 1 < first + cells) {
+					SearchStatistics s1 = end + 1 < first + to ? stats : null;
+					next = Autoloop.estimate(samples, s, end + 1, tailLength, loops.threshold(), s1);
+					minimum = current <= before && current < next;
+				} else {
+					minimum = current <= before;
+				}
+				if(minimum && current <= loops.threshold()) {
+					loops.add(start, end << shift, current);
+				}
+				before = current;
+				current = next;
+			}
+		}
+	}
+
+	/**
+	 * @param levels
+	 *                number of decimation levels; the coarsest level is decimated by 2^levels
+	 * @param regions
+	 *                number of candidate regions which are refined per level
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int levels, int regions, SearchStatistics stats) throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, threadcnt, levels, regions, stats, null);
+	}
+
+	/**
+	 * @param control
+	 *                reports the progress of the coarse search and stops it early, may be null; the candidates
+	 *                found until then are refined as usual
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int threadcnt, int levels, int regions, SearchStatistics stats, LoopSearch control)
+			throws InterruptedException {
+		if(levels < 1) {
+			throw new IllegalArgumentException("need at least one level");
+		}
+		if(regions < 1) {
+			throw new IllegalArgumentException("need at least one region");
+		}
+
+		AudioBuffer[] pyramid = new AudioBuffer[levels + 1];
+		pyramid[0] = samples;
+		for(int i = 1; i <= levels; i++) {
+			pyramid[i] = Decimator.decimate(pyramid[i - 1]);
+		}
+
+		// full search on the coarsest level, with the start positions of the full resolution search
+		int maxlen = samples.getLength() - tailLength - skip;
+		int starts = 0;
+		if(maxlen > skip) {
+			starts = (int) ((maxlen - skip + (long) step - 1) / step);
+		}
+
+		Search search = new Search(pyramid[levels], skip, step, levels, getMinLength(minLength, levels),
+				getTailLength(tailLength, levels));
+		Loop[] candidates = AnalysisExecutor.run(search, starts, regions, threadcnt, stats, control);
+		if(candidates == null) {
+			return null;
+		}
+
+		// refine
+		for(int level = levels - 1; level > 0 && candidates != null; level--) {
+			candidates = refine(pyramid[level], level, candidates, minLength, tailLength, regions, true, stats);
+		}
+		if(candidates == null) {
+			return null;
+		}
+		return refine(samples, 0, candidates, minLength, tailLength, loopcnt, false, stats);
+	}
+
+	// a candidate end must stay behind its start on every level
+	private static int getMinLength(int minLength, int shift) {
+		if(shift == 0) {
+			return minLength;
+		} else {
+			return Math.max(minLength >> shift, 1);
+		}
+	}
+
+	private static int getTailLength(int tailLength, int shift) {
+		return Math.max(tailLength >> shift, 1);
+	}
+
+	/**
+	 * Checks the ends around the candidates on one level. With regions set, only the best end per candidate is
+	 * kept, otherwise the best count loops of all checked ends.
+	 */
+	private static Loop[] refine(AudioBuffer samples, int shift, Loop[] candidates, int minLength, int tailLength,
+			int count, boolean regions, SearchStatistics stats) {
+		int tail = getTailLength(tailLength, shift);
+		int maxlen = samples.getLength() - tail;
+		LoopCollector loops = new LoopCollector(count);
+		Set<Long> checked = new HashSet<>();
+		SearchStatistics local = new SearchStatistics();
+
+		for(Loop candidate : candidates) {
+			int s = candidate.start >> shift;
+			int first = s + getMinLength(minLength, shift);
+			int center = candidate.end >> shift;
+			int from = Math.max(center - RADIUS, first);
+			int to = Math.min(center + RADIUS + 1, maxlen);
+
+			int bestEnd = -1;
+			float best = Float.POSITIVE_INFINITY;
+			for(int end = from; end < to; end++) {
+				long key = ((long) candidate.start << 32) | end;
+				if(!checked.add(key)) {
+					continue;
+				}
+				local.candidates(1, (long) tail * samples.getChannels());
+				float threshold = regions ? best : loops.threshold();
+				float error = Autoloop.estimate(samples, s, end, tail, threshold, local);
+				if(regions) {
+					if(error < best) {
+						best = error;
+						bestEnd = end;
+					}
+				} else if(error <= threshold) {
+					loops.add(candidate.start, end, error);
+				}
+			}
+			if(regions && bestEnd != -1) {
+				loops.add(candidate.start, bestEnd << shift, best);
+			}
+		}
+
+		if(stats != null) {
+			stats.add(local);
+		}
+
+		if(loops.size() == 0) {
+			return null;
+		} else {
+			return loops.toArray();
+		}
+	}
+}
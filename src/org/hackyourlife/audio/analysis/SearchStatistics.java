@@ -0,0 +1,138 @@
+package org.hackyourlife.audio.analysis;
+
+/**
+ * Counts the work done by a loop search. Every compute thread fills its own instance, the results are combined
+ * with {@link SearchStatistics#add(SearchStatistics)} when the threads are done.
+ */
+public class SearchStatistics {
+	private long candidates;
+	private long samples;
+	private long skipped;
+	private long gated;
+	private long filtered;
+	private long tested;
+	private final long[] rejected = new long[LowerBounds.STAGES];
+
+	/**
+	 * Records count candidates which need samples sample comparisons each when evaluated exhaustively.
+	 */
+	public void candidates(long count, long samplesPerCandidate) {
+		candidates += count;
+		samples += count * samplesPerCandidate;
+	}
+
+	/**
+	 * Records samples which were not compared because the evaluation was aborted early.
+	 */
+	public void skipped(long count) {
+		skipped += count;
+	}
+
+	/**
+	 * Records candidates which were rejected by the loudness gate without evaluating them.
+	 */
+	public void gated(long count) {
+		gated += count;
+	}
+
+	/**
+	 * Records candidates which were rejected by the {@link PhaseIndex} without evaluating them.
+	 */
+	public void filtered(long count) {
+		filtered += count;
+	}
+
+	/**
+	 * Records candidates which were tested with the {@link LowerBounds} cascade.
+	 */
+	public void tested(long count) {
+		tested += count;
+	}
+
+	/**
+	 * Records candidates which were rejected by a stage of the {@link LowerBounds} cascade.
+	 */
+	public void rejected(int stage, long count) {
+		rejected[stage] += count;
+	}
+
+	public synchronized void add(SearchStatistics other) {
+		candidates += other.candidates;
+		samples += other.samples;
+		skipped += other.skipped;
+		gated += other.gated;
+		filtered += other.filtered;
+		tested += other.tested;
+		for(int i = 0; i < rejected.length; i++) {
+			rejected[i] += other.rejected[i];
+		}
+	}
+
+	public synchronized long getCandidates() {
+		return candidates;
+	}
+
+	public synchronized long getSamples() {
+		return samples;
+	}
+
+	public synchronized long getSkippedSamples() {
+		return skipped;
+	}
+
+	public synchronized long getGatedCandidates() {
+		return gated;
+	}
+
+	public synchronized long getFilteredCandidates() {
+		return filtered;
+	}
+
+	public synchronized long getTestedCandidates() {
+		return tested;
+	}
+
+	public synchronized long getRejectedCandidates(int stage) {
+		return rejected[stage];
+	}
+
+	/**
+	 * Returns the fraction of the candidates reaching a stage of the {@link LowerBounds} cascade which it rejected.
+	 */
+	public synchronized double getRejectionRate(int stage) {
+		long reached = tested;
+		for(int i = 0; i < stage; i++) {
+			reached -= rejected[i];
+		}
+		if(reached == 0) {
+			return 0;
+		} else {
+			return rejected[stage] / (double) reached;
+		}
+	}
+
+	public synchronized double getSkippedRatio() {
+		if(samples == 0) {
+			return 0;
+		} else {
+			return skipped / (double) samples;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		String s = String.format("%d candidates, %d of %d samples skipped (%1.1f%%)", candidates, skipped, samples,
+				getSkippedRatio() * 100);
+		if(gated > 0) {
+			s += String.format(", %d candidates below the loudness gate", gated);
+		}
+		if(filtered > 0) {
+			s += String.format(", %d candidates out of phase", filtered);
+		}
+		if(tested > 0) {
+			s += String.format(", lower bounds: %d tested, %1.1f%% rejected by energy, %1.1f%% by sketch", tested,
+					getRejectionRate(LowerBounds.ENERGY) * 100, getRejectionRate(LowerBounds.SKETCH) * 100);
+		}
+		return s;
+	}
+}
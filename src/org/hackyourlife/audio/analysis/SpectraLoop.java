@@ -1,139 +1,146 @@
 package org.hackyourlife.audio.analysis;
 
-import java.util.Arrays;
-import java.util.NoSuchElementException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import org.hackyourlife.audio.AudioBuffer;
+import org.hackyourlife.audio.dsp.Filterbank;
 
 public class SpectraLoop {
-	private static class Task {
-		private final int start;
-
-		public Task(int start) {
-			this.start = start;
-		}
-
-		public int getStart() {
-			return start;
-		}
-	}
-
-	private static class ComputeThread extends Thread {
-		private final float[][][] samples;
+	/**
+	 * One row per start frame, one cell per end frame.
+	 */
+	private static class Search extends AnalysisExecutor.RowSearch {
+		private final SpectrogramData samples;
+		private final int skip;
+		private final int step;
 		private final int minLength;
 		private final int tailLength;
 		private final int maxlen;
-		private final Queue<Task> tasks;
-
-		private volatile Loop[] loops;
+		private final boolean vector;
 
-		public ComputeThread(float[][][] samples, int minLength, int tailLength, int count, Queue<Task> tasks) {
+		public Search(SpectrogramData samples, int skip, int step, int minLength, int tailLength, boolean vector) {
 			this.samples = samples;
+			this.vector = vector;
+			this.skip = skip;
+			this.step = step;
 			this.minLength = minLength;
 			this.tailLength = tailLength;
-			this.tasks = tasks;
-			maxlen = samples[0].length - tailLength;
-			loops = new Loop[count];
+			maxlen = samples.getFrames() - tailLength;
 		}
 
 		@Override
-		public void run() {
-			Loop[] best = new Loop[loops.length];
-			try {
-				while(!tasks.isEmpty()) {
-					Task task = tasks.remove();
-					int start = task.getStart();
-					for(int end = start + minLength; end < maxlen; end++) {
-						float error = estimate(samples, start, end, tailLength);
-						int worst = -1;
-						float worsterror = -Float.MAX_VALUE;
-						for(int i = 0; i < best.length; i++) {
-							if(best[i] == null) {
-								best[i] = new Loop(start, end, error);
-								break;
-							} else if(best[i].error > worsterror) {
-								worst = i;
-								worsterror = best[i].error;
-							}
-						}
-						if(worst != -1) {
-							best[worst] = new Loop(start, end, error);
-						}
-					}
-				}
-			} catch(NoSuchElementException e) {
-				// tasks.remove() failed, swallow
-			}
-			this.loops = best;
+		public int getCells(int row) {
+			int first = skip + row * step + minLength;
+			return Math.max(maxlen - first, 0);
 		}
 
-		public Loop[] getLoops() {
-			return loops;
+		@Override
+		public void compute(int row, int from, int to, LoopCollector loops, SearchStatistics stats) {
+			int start = skip + row * step;
+			int first = start + minLength;
+			for(int end = first + from; end < first + to; end++) {
+				float error = vector ? estimateVector(samples, start, end, tailLength)
+						: estimate(samples, start, end, tailLength);
+				loops.add(start, end, error);
+			}
 		}
 	}
 
 	public static Loop[] loop(float[][] samples, int skip, int step, int minLength, int tailLength, int loopcnt,
 			int fftSize, int stepSize, int windowType, int windowSize, int threadcnt)
 			throws InterruptedException {
-		float[][][] fft = Spectrogram.spectrogram(samples, fftSize, stepSize, windowType, windowSize);
-		int maxlen = samples[0].length - tailLength - skip;
-		ConcurrentLinkedQueue<Task> tasks = new ConcurrentLinkedQueue<>();
-		ComputeThread[] threads = new ComputeThread[threadcnt];
+		return loop(AudioBuffer.planar(samples), skip, step, minLength, tailLength, loopcnt, fftSize, stepSize,
+				windowType, windowSize, threadcnt);
+	}
 
-		for(int start = skip; start < maxlen; start += step) {
-			tasks.add(new Task(start));
-		}
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int fftSize, int stepSize, int windowType, int windowSize, int threadcnt)
+			throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, fftSize, stepSize, windowType, windowSize,
+				threadcnt, SpectrogramData.FLOAT);
+	}
 
-		// spawn threads
-		for(int i = 0; i < threadcnt; i++) {
-			threads[i] = new ComputeThread(fft, minLength, tailLength, loopcnt, tasks);
-			threads[i].start();
-		}
+	/**
+	 * @param format
+	 *                the storage format of the spectrogram, one of the formats of {@link SpectrogramData}
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int fftSize, int stepSize, int windowType, int windowSize, int threadcnt, int format)
+			throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, fftSize, stepSize, windowType, windowSize,
+				threadcnt, format, null);
+	}
 
-		// wait for results
-		for(Thread t : threads) {
-			t.join();
-		}
+	/**
+	 * Searches loops on a band-reduced spectrogram. Comparing a few perceptual bands instead of all FFT bins makes
+	 * every candidate much cheaper while the coarse spectral envelope, which is what changes with LFOs and wave
+	 * sequences, is preserved.
+	 *
+	 * @param filterbank
+	 *                the filterbank for fftSize, or null to compare all bins
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int fftSize, int stepSize, int windowType, int windowSize, int threadcnt, int format,
+			Filterbank filterbank) throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, fftSize, stepSize, windowType, windowSize,
+				threadcnt, format, filterbank, null);
+	}
 
-		// collect results
-		Loop[] loops = new Loop[loopcnt * threadcnt];
-		int i = 0;
-		for(ComputeThread t : threads) {
-			Loop[] l = t.getLoops();
-			System.arraycopy(l, 0, loops, i, l.length);
-			i += l.length;
-		}
+	/**
+	 * @param control
+	 *                reports the progress of the search on the spectrogram and stops it early, may be null; the
+	 *                spectrogram itself is always computed completely
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int fftSize, int stepSize, int windowType, int windowSize, int threadcnt, int format,
+			Filterbank filterbank, LoopSearch control) throws InterruptedException {
+		return loop(samples, skip, step, minLength, tailLength, loopcnt, fftSize, stepSize, windowType, windowSize,
+				threadcnt, format, filterbank, Autoloop.DIRECT, control);
+	}
 
-		// remove null results
-		int nonnull = 0;
-		for(Loop loop : loops) {
-			if(loop != null) {
-				nonnull++;
-			}
+	/**
+	 * @param engine
+	 *                {@link Autoloop#VECTOR} to compare the frames with the SIMD kernels of {@link ErrorKernel}, any
+	 *                other engine compares them sequentially
+	 */
+	public static Loop[] loop(AudioBuffer samples, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int fftSize, int stepSize, int windowType, int windowSize, int threadcnt, int format,
+			Filterbank filterbank, int engine, LoopSearch control) throws InterruptedException {
+		SpectrogramData fft = Spectrogram.spectrogram(samples, fftSize, stepSize, windowType, windowSize,
+				threadcnt, format, filterbank);
+		return loop(fft, skip, step, minLength, tailLength, loopcnt, stepSize, threadcnt, engine, control);
+	}
+
+	/**
+	 * Searches loops in a precomputed spectrogram. All positions and lengths except the result are in frames.
+	 */
+	public static Loop[] loop(SpectrogramData fft, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int stepSize, int threadcnt) throws InterruptedException {
+		return loop(fft, skip, step, minLength, tailLength, loopcnt, stepSize, threadcnt, null);
+	}
+
+	public static Loop[] loop(SpectrogramData fft, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int stepSize, int threadcnt, LoopSearch control) throws InterruptedException {
+		return loop(fft, skip, step, minLength, tailLength, loopcnt, stepSize, threadcnt, Autoloop.DIRECT, control);
+	}
+
+	public static Loop[] loop(SpectrogramData fft, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int stepSize, int threadcnt, int engine, LoopSearch control) throws InterruptedException {
+		int maxlen = fft.getFrames() - tailLength - skip;
+		int starts = 0;
+		if(maxlen > skip) {
+			starts = (int) ((maxlen - skip + (long) step - 1) / step);
 		}
 
-		Loop[] result;
-		if(nonnull == 0) {
+		Search search = new Search(fft, skip, step, minLength, tailLength, engine == Autoloop.VECTOR);
+		Loop[] result = AnalysisExecutor.run(search, starts, loopcnt, threadcnt, null, control);
+		if(result == null) {
 			return null;
-		} else if(nonnull != loops.length) {
-			result = new Loop[nonnull];
-			int j;
-			for(i = 0, j = 0; i < loops.length; i++) {
-				if(loops[i] != null) {
-					Loop loop = loops[i];
-					result[j++] = new Loop(loop.start * stepSize, loop.end * stepSize, loop.error);
-				}
-			}
-		} else {
-			result = loops;
-			for(i = 0; i < loops.length; i++) {
-				Loop loop = loops[i];
-				result[i] = new Loop(loop.start * stepSize, loop.end * stepSize, loop.error);
-			}
 		}
 
-		// sort result according to score
-		Arrays.sort(result);
+		// convert to sample positions
+		for(int i = 0; i < result.length; i++) {
+			Loop loop = result[i];
+			result[i] = new Loop(loop.start * stepSize, loop.end * stepSize, loop.error);
+		}
 
 		return result;
 	}
@@ -156,4 +163,78 @@ public class SpectraLoop {
 		}
 		return error;
 	}
+
+	public static float estimate(SpectrogramData samples, int start, int end, int tailLength) {
+		float error = 0;
+		int channels = samples.getChannels();
+		int count = tailLength * samples.getBins();
+		float[] table = samples.getDecodeTable();
+		for(int ch = 0; ch < channels; ch++) {
+			int a0 = samples.offset(ch, start);
+			int b0 = samples.offset(ch, end);
+			switch(samples.getFormat()) {
+			case SpectrogramData.LOG16: {
+				short[] data = samples.getShorts();
+				for(int i = 0; i < count; i++) {
+					float a = table[data[a0 + i] & 0xFFFF];
+					float b = table[data[b0 + i] & 0xFFFF];
+					float diff = (a - b) * (a - b);
+					error += diff;
+				}
+				break;
+			}
+			case SpectrogramData.LOG8: {
+				byte[] data = samples.getBytes();
+				for(int i = 0; i < count; i++) {
+					float a = table[data[a0 + i] & 0xFF];
+					float b = table[data[b0 + i] & 0xFF];
+					float diff = (a - b) * (a - b);
+					error += diff;
+				}
+				break;
+			}
+			default: {
+				float[] data = samples.getFloats();
+				for(int i = 0; i < count; i++) {
+					float a = data[a0 + i];
+					float b = data[b0 + i];
+					float diff = (a - b) * (a - b);
+					error += diff;
+				}
+			}
+			}
+		}
+		if(!Double.isFinite(error)) {
+			System.out.println("Error is not finite");
+		}
+		return error;
+	}
+
+	/**
+	 * Same as {@link SpectraLoop#estimate(SpectrogramData, int, int, int)}, but sums the frames of every channel
+	 * with {@link ErrorKernel}.
+	 */
+	public static float estimateVector(SpectrogramData samples, int start, int end, int tailLength) {
+		float error = 0;
+		int channels = samples.getChannels();
+		int count = tailLength * samples.getBins();
+		for(int ch = 0; ch < channels; ch++) {
+			int a0 = samples.offset(ch, start);
+			int b0 = samples.offset(ch, end);
+			switch(samples.getFormat()) {
+			case SpectrogramData.LOG16:
+				error += ErrorKernel.squaredError(samples.getDecodeTable(), samples.getShorts(), a0, b0, count);
+				break;
+			case SpectrogramData.LOG8:
+				error += ErrorKernel.squaredError(samples.getDecodeTable(), samples.getBytes(), a0, b0, count);
+				break;
+			default:
+				error += ErrorKernel.squaredError(samples.getFloats(), a0, b0, count);
+			}
+		}
+		if(!Double.isFinite(error)) {
+			System.out.println("Error is not finite");
+		}
+		return error;
+	}
 }
@@ -1,51 +1,144 @@
 package org.hackyourlife.audio.analysis;
 
-import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
 
+import org.hackyourlife.audio.AudioBuffer;
 import org.hackyourlife.audio.dsp.FFT;
+import org.hackyourlife.audio.dsp.FFTPlan;
+import org.hackyourlife.audio.dsp.Filterbank;
 
 public class Spectrogram {
+	private static final int TILE_SIZE = 64;
+
 	public static float[][][] spectrogram(float[][] samples, int fftSize, int stepSize, int windowType,
 			int windowSize) {
-		int nch = samples.length;
-		int samplecnt = samples[0].length;
+		return spectrogram(AudioBuffer.planar(samples), fftSize, stepSize, windowType, windowSize);
+	}
+
+	public static float[][][] spectrogram(AudioBuffer samples, int fftSize, int stepSize, int windowType,
+			int windowSize) {
+		return spectrogram(samples, fftSize, stepSize, windowType, windowSize, 1);
+	}
+
+	public static float[][][] spectrogram(AudioBuffer samples, int fftSize, int stepSize, int windowType,
+			int windowSize, int threadcnt) {
+		return spectrogram(samples, fftSize, stepSize, windowType, windowSize, threadcnt, SpectrogramData.FLOAT)
+				.toArray();
+	}
+
+	/**
+	 * Computes the spectrogram with threadcnt threads. The frames are split into tiles; every tile uses its own
+	 * scratch buffer and writes to its own rows of the result, so the result is identical to the single threaded
+	 * computation.
+	 *
+	 * @param format
+	 *                the storage format of the magnitudes, one of the formats of {@link SpectrogramData}
+	 */
+	public static SpectrogramData spectrogram(AudioBuffer samples, int fftSize, int stepSize, int windowType,
+			int windowSize, int threadcnt, int format) {
+		return spectrogram(samples, fftSize, stepSize, windowType, windowSize, threadcnt, format, null);
+	}
+
+	/**
+	 * Computes the spectrogram and reduces every frame to the bands of a filterbank.
+	 *
+	 * @param filterbank
+	 *                the filterbank for fftSize, or null to keep all fftSize / 2 bins
+	 */
+	public static SpectrogramData spectrogram(AudioBuffer samples, int fftSize, int stepSize, int windowType,
+			int windowSize, int threadcnt, int format, Filterbank filterbank) {
+		if(filterbank != null && filterbank.getFFTSize() != fftSize) {
+			throw new IllegalArgumentException("filterbank does not match the FFT size");
+		}
+		int nch = samples.getChannels();
+		int samplecnt = samples.getLength();
 		int fftcount = samplecnt / stepSize;
 		if((samplecnt % stepSize) != 0) {
 			fftcount++;
 		}
-		float[][][] result = new float[nch][fftcount][fftSize / 2];
+		int bins = filterbank == null ? fftSize / 2 : filterbank.getBands();
+		SpectrogramData result = new SpectrogramData(nch, fftcount, bins, format);
 
 		double[] window = FFT.makeWindow(windowType, fftSize, windowSize);
 
-		double[] fft = new double[fftSize];
-		double[] phase = new double[fftSize];
-		for(int i = 0, n = 0; i < samplecnt; i += stepSize, n++) {
-			for(int ch = 0; ch < nch; ch++) {
-				fill(fft, samples, ch, i, windowSize);
-				Arrays.fill(phase, 0);
-				FFT.applyWindow(fft, window);
-				FFT.magnitudePhaseFFT(fft, phase);
-				finish(result, fft, ch, n);
-			}
+		Tile tile = new Tile(samples, result, window, filterbank, stepSize, windowSize, 0, fftcount);
+		if(threadcnt <= 1) {
+			tile.frames();
+		} else {
+			AnalysisExecutor.getPool(threadcnt).invoke(tile);
 		}
 
 		return result;
 	}
 
-	private static void fill(double[] out, float[][] samples, int ch, int start, int count) {
-		for(int i = 0; i < count; i++) {
-			int idx = start + i;
-			if(idx < samples[ch].length) {
-				out[i] = samples[ch][idx];
+	private static class Tile extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final AudioBuffer samples;
+		private final SpectrogramData result;
+		private final double[] window;
+		private final Filterbank filterbank;
+		private final int stepSize;
+		private final int windowSize;
+		private final int first;
+		private final int last;
+
+		Tile(AudioBuffer samples, SpectrogramData result, double[] window, Filterbank filterbank, int stepSize,
+				int windowSize, int first, int last) {
+			this.samples = samples;
+			this.result = result;
+			this.window = window;
+			this.filterbank = filterbank;
+			this.stepSize = stepSize;
+			this.windowSize = windowSize;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected void compute() {
+			if(last - first <= TILE_SIZE) {
+				frames();
 			} else {
-				out[i] = 0;
+				int mid = (first + last) >>> 1;
+				invokeAll(new Tile(samples, result, window, filterbank, stepSize, windowSize, first, mid),
+						new Tile(samples, result, window, filterbank, stepSize, windowSize, mid, last));
+			}
+		}
+
+		void frames() {
+			int nch = samples.getChannels();
+			FFTPlan plan = FFTPlan.get(window.length);
+			double[] fft = new double[window.length];
+			double[] bands = filterbank == null ? null : new double[filterbank.getBands()];
+			for(int n = first; n < last; n++) {
+				int i = n * stepSize;
+				for(int ch = 0; ch < nch; ch++) {
+					fill(fft, samples, ch, i, windowSize);
+					FFT.applyWindow(fft, window);
+					plan.magnitudeSpectrum(fft);
+					if(filterbank != null) {
+						filterbank.apply(fft, bands);
+						result.setFrame(ch, n, bands);
+					} else {
+						result.setFrame(ch, n, fft);
+					}
+				}
 			}
 		}
 	}
 
-	private static void finish(float[][][] out, double[] fft, int ch, int n) {
-		for(int i = 0; i < fft.length / 2; i++) {
-			out[ch][n][i] = (float) fft[i];
+	private static void fill(double[] out, AudioBuffer samples, int ch, int start, int count) {
+		float[] data = samples.getData();
+		int stride = samples.getFrameStride();
+		int n = Math.min(count, samples.getLength() - start);
+		int i = 0;
+		for(int off = samples.offset(ch, start); i < n; i++, off += stride) {
+			out[i] = data[off];
+		}
+		// clear the rest as well, so every frame is independent of the previous one
+		for(; i < out.length; i++) {
+			out[i] = 0;
 		}
 	}
 }
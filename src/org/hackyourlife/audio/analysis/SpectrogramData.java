@@ -0,0 +1,211 @@
+package org.hackyourlife.audio.analysis;
+
+/**
+ * Magnitude spectrogram stored in one flat array. Frames of a channel are stored row after row, so the frames
+ * [start, start + n) of channel ch are the single range [offset(ch, start), offset(ch, start) + n * bins).
+ *
+ * The magnitudes are either stored as floats, or quantized logarithmically to 16bit or 8bit codes, which reduces
+ * the memory to one half or one quarter. Codes cover {@value #MIN_DB} dB to {@value #MAX_DB} dB; code 0 means
+ * silence (below the range) and decodes to exactly 0. Use {@link SpectrogramData#getDecodeTable()} to convert codes
+ * back to magnitudes.
+ */
+public class SpectrogramData {
+	/**
+	 * 32bit float magnitudes
+	 */
+	public static final int FLOAT = 0;
+	/**
+	 * 16bit log-magnitude codes
+	 */
+	public static final int LOG16 = 1;
+	/**
+	 * 8bit log-magnitude codes
+	 */
+	public static final int LOG8 = 2;
+
+	public static final double MIN_DB = -140;
+	public static final double MAX_DB = 20;
+
+	private static float[] table16;
+	private static float[] table8;
+
+	private final int channels;
+	private final int frames;
+	private final int bins;
+	private final int format;
+
+	private final float[] floats;
+	private final short[] shorts;
+	private final byte[] bytes;
+	private final float[] table;
+
+	public SpectrogramData(int channels, int frames, int bins, int format) {
+		long size = (long) channels * frames * bins;
+		if(channels < 1 || frames < 0 || bins < 1 || size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("invalid spectrogram size");
+		}
+		this.channels = channels;
+		this.frames = frames;
+		this.bins = bins;
+		this.format = format;
+		switch(format) {
+		case FLOAT:
+			floats = new float[(int) size];
+			shorts = null;
+			bytes = null;
+			break;
+		case LOG16:
+			floats = null;
+			shorts = new short[(int) size];
+			bytes = null;
+			break;
+		case LOG8:
+			floats = null;
+			shorts = null;
+			bytes = new byte[(int) size];
+			break;
+		default:
+			throw new IllegalArgumentException("invalid format " + format);
+		}
+		table = getDecodeTable();
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	public int getFrames() {
+		return frames;
+	}
+
+	public int getBins() {
+		return bins;
+	}
+
+	public int getFormat() {
+		return format;
+	}
+
+	public int offset(int ch, int frame) {
+		return (ch * frames + frame) * bins;
+	}
+
+	/**
+	 * Returns the magnitudes in {@link SpectrogramData#FLOAT} format.
+	 */
+	public float[] getFloats() {
+		return floats;
+	}
+
+	/**
+	 * Returns the codes in {@link SpectrogramData#LOG16} format.
+	 */
+	public short[] getShorts() {
+		return shorts;
+	}
+
+	/**
+	 * Returns the codes in {@link SpectrogramData#LOG8} format.
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the table which maps the (unsigned) codes to magnitudes, or null for
+	 * {@link SpectrogramData#FLOAT}.
+	 */
+	public float[] getDecodeTable() {
+		switch(format) {
+		case LOG16:
+			return getTable16();
+		case LOG8:
+			return getTable8();
+		default:
+			return null;
+		}
+	}
+
+	public float get(int ch, int frame, int bin) {
+		int off = offset(ch, frame) + bin;
+		switch(format) {
+		case LOG16:
+			return table[shorts[off] & 0xFFFF];
+		case LOG8:
+			return table[bytes[off] & 0xFF];
+		default:
+			return floats[off];
+		}
+	}
+
+	/**
+	 * Stores the first bins magnitudes of one frame.
+	 */
+	public void setFrame(int ch, int frame, double[] magnitudes) {
+		int off = offset(ch, frame);
+		switch(format) {
+		case LOG16:
+			for(int i = 0; i < bins; i++) {
+				shorts[off + i] = (short) encode(magnitudes[i], 0xFFFF);
+			}
+			break;
+		case LOG8:
+			for(int i = 0; i < bins; i++) {
+				bytes[off + i] = (byte) encode(magnitudes[i], 0xFF);
+			}
+			break;
+		default:
+			for(int i = 0; i < bins; i++) {
+				floats[off + i] = (float) magnitudes[i];
+			}
+		}
+	}
+
+	public float[][][] toArray() {
+		float[][][] result = new float[channels][frames][bins];
+		for(int ch = 0; ch < channels; ch++) {
+			for(int n = 0; n < frames; n++) {
+				for(int i = 0; i < bins; i++) {
+					result[ch][n][i] = get(ch, n, i);
+				}
+			}
+		}
+		return result;
+	}
+
+	private static int encode(double magnitude, int maxCode) {
+		if(!(magnitude > 0)) {
+			return 0;
+		}
+		double db = 20 * Math.log10(magnitude);
+		if(db < MIN_DB) {
+			return 0;
+		}
+		double code = 1 + (db - MIN_DB) / (MAX_DB - MIN_DB) * (maxCode - 1);
+		return (int) Math.min(Math.round(code), maxCode);
+	}
+
+	private static float[] decodeTable(int maxCode) {
+		float[] table = new float[maxCode + 1];
+		table[0] = 0;
+		for(int code = 1; code <= maxCode; code++) {
+			double db = MIN_DB + (code - 1) * (MAX_DB - MIN_DB) / (maxCode - 1);
+			table[code] = (float) Math.pow(10, db / 20);
+		}
+		return table;
+	}
+
+	private static synchronized float[] getTable16() {
+		if(table16 == null) {
+			table16 = decodeTable(0xFFFF);
+		}
+		return table16;
+	}
+
+	private static synchronized float[] getTable8() {
+		if(table8 == null) {
+			table8 = decodeTable(0xFF);
+		}
+		return table8;
+	}
+}
@@ -0,0 +1,251 @@
+package org.hackyourlife.audio.analysis;
+
+import java.util.Arrays;
+
+import org.hackyourlife.audio.AudioBuffer;
+
+/**
+ * Incremental version of {@link Autoloop#loop(AudioBuffer, int, int, int, int, int, int, int, SearchStatistics)}
+ * for samples which arrive in blocks, e.g. while a note is still being recorded. Every candidate is evaluated as
+ * soon as the samples of its end window are available, and {@link StreamingAutoloop#getLoops()} can be called at
+ * any time: it returns the same loops as the batch search (with an interleaved buffer) over the samples appended so
+ * far.
+ *
+ * Only the samples which can be the start of a loop are kept, plus a ring buffer of the most recent samples for the
+ * end windows. Without a limit, this is still the whole recording; with a start region of n samples, the memory is
+ * bounded by n + tailLength samples plus the ring buffer, and the result is the one of the batch search restricted
+ * to loops starting before skip + n.
+ *
+ * The samples must already be scaled, the errors are relative to the scale of the appended samples. All methods
+ * are synchronized, so the loops can be queried from another thread than the one appending the samples.
+ */
+public class StreamingAutoloop {
+	/**
+	 * maximum number of samples per channel evaluated at once
+	 */
+	private static final int CHUNK_SIZE = 4096;
+	private static final int BLOCK_SIZE = 64;
+
+	private final int channels;
+	private final int skip;
+	private final int step;
+	private final int minLength;
+	private final int tailLength;
+	private final int startRegion;
+
+	private final LoopCollector loops;
+	private final SearchStatistics stats = new SearchStatistics();
+
+	// interleaved samples from skip on; only the part which contains start windows is kept
+	private float[] history;
+	private final int historyLimit;
+
+	// interleaved samples, every sample stored at pos and pos + ringSize so any window is contiguous; null if the
+	// history is not limited and the end windows are taken from there
+	private final float[] ring;
+	private final int ringSize;
+
+	private int length;
+	private int startCount;
+
+	/**
+	 * Creates a search without limit for the start region, which keeps all samples after skip.
+	 */
+	public StreamingAutoloop(int channels, int skip, int step, int minLength, int tailLength, int loopcnt) {
+		this(channels, skip, step, minLength, tailLength, loopcnt, -1);
+	}
+
+	/**
+	 * @param startRegion
+	 *                number of samples after skip in which a loop can start, or -1 for no limit
+	 */
+	public StreamingAutoloop(int channels, int skip, int step, int minLength, int tailLength, int loopcnt,
+			int startRegion) {
+		if(channels < 1) {
+			throw new IllegalArgumentException("need at least one channel");
+		}
+		if(skip < 0 || step < 1 || minLength < 1 || tailLength < 1) {
+			throw new IllegalArgumentException("invalid search parameters");
+		}
+		if(startRegion < -1) {
+			throw new IllegalArgumentException("invalid start region");
+		}
+		this.channels = channels;
+		this.skip = skip;
+		this.step = step;
+		this.minLength = minLength;
+		this.tailLength = tailLength;
+		this.startRegion = startRegion;
+		loops = new LoopCollector(loopcnt);
+
+		if(startRegion == -1) {
+			historyLimit = Integer.MAX_VALUE;
+			history = new float[CHUNK_SIZE * channels];
+			ring = null;
+			ringSize = 0;
+		} else {
+			historyLimit = startRegion + tailLength;
+			history = new float[Math.min(historyLimit, CHUNK_SIZE) * channels];
+			// the oldest end evaluated in a chunk is the first end of a start which only became valid in it
+			ringSize = CHUNK_SIZE + tailLength + Math.max(0, skip - minLength);
+			ring = new float[2 * ringSize * channels];
+		}
+		length = 0;
+		startCount = 0;
+	}
+
+	/**
+	 * Appends the samples [off, off + count) of every channel and evaluates all candidates which became
+	 * evaluable.
+	 */
+	public synchronized void append(float[][] samples, int off, int count) {
+		if(samples.length != channels) {
+			throw new IllegalArgumentException("channel count mismatch");
+		}
+		for(int i = 0; i < count; i += CHUNK_SIZE) {
+			int n = Math.min(CHUNK_SIZE, count - i);
+			for(int ch = 0; ch < channels; ch++) {
+				float[] data = samples[ch];
+				for(int j = 0; j < n; j++) {
+					store(length + j, ch, data[off + i + j]);
+				}
+			}
+			advance(n);
+		}
+	}
+
+	/**
+	 * Appends all samples of the buffer and evaluates all candidates which became evaluable.
+	 */
+	public synchronized void append(AudioBuffer samples) {
+		if(samples.getChannels() != channels) {
+			throw new IllegalArgumentException("channel count mismatch");
+		}
+		float[] data = samples.getData();
+		int count = samples.getLength();
+		for(int i = 0; i < count; i += CHUNK_SIZE) {
+			int n = Math.min(CHUNK_SIZE, count - i);
+			for(int ch = 0; ch < channels; ch++) {
+				for(int j = 0; j < n; j++) {
+					store(length + j, ch, data[samples.offset(ch, i + j)]);
+				}
+			}
+			advance(n);
+		}
+	}
+
+	private void store(int pos, int ch, float value) {
+		int h = pos - skip;
+		if(h >= 0 && h < historyLimit) {
+			if((long) h * channels >= history.length) {
+				long size = Math.min(2L * history.length, (long) historyLimit * channels);
+				if(size > Integer.MAX_VALUE) {
+					throw new IllegalStateException("too many samples");
+				}
+				history = Arrays.copyOf(history, (int) size);
+			}
+			history[h * channels + ch] = value;
+		}
+		if(ring != null) {
+			int r = pos % ringSize;
+			ring[r * channels + ch] = value;
+			ring[(r + ringSize) * channels + ch] = value;
+		}
+	}
+
+	private void advance(int count) {
+		int evaluated = length - tailLength;
+		length += count;
+
+		// same start and end range as the batch search over the current length
+		long maxStart = (long) length - tailLength - skip;
+		if(startRegion != -1) {
+			maxStart = Math.min(maxStart, (long) skip + startRegion);
+		}
+		int firstNew = startCount;
+		while(skip + (long) startCount * step < maxStart) {
+			startCount++;
+		}
+
+		int maxlen = length - tailLength;
+		for(int i = 0; i < startCount; i++) {
+			int start = skip + i * step;
+			int first = start + minLength;
+			if(i < firstNew) {
+				// the ends before were already evaluated when the data ended there
+				first = Math.max(first, evaluated);
+			}
+			if(first >= maxlen) {
+				continue;
+			}
+			stats.candidates(maxlen - first, (long) tailLength * channels);
+			for(int end = first; end < maxlen; end++) {
+				float threshold = loops.threshold();
+				float error = estimate(start, end, threshold);
+				if(error <= threshold) {
+					loops.add(start, end, error);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same summation order as {@link Autoloop#estimate(AudioBuffer, int, int, int, float, SearchStatistics)} for an
+	 * interleaved buffer, so the errors are identical to the ones of the batch search.
+	 */
+	private float estimate(int start, int end, float threshold) {
+		float[] a = history;
+		int a0 = (start - skip) * channels;
+		float[] b;
+		int b0;
+		if(ring == null) {
+			b = history;
+			b0 = (end - skip) * channels;
+		} else {
+			b = ring;
+			b0 = (end % ringSize) * channels;
+		}
+		int count = tailLength * channels;
+		float error = 0;
+		for(int i = 0; i < count;) {
+			int blockEnd = Math.min(i + BLOCK_SIZE, count);
+			for(; i < blockEnd; i++) {
+				float x = a[a0 + i];
+				float y = b[b0 + i];
+				float diff = (x - y) * (x - y);
+				error += diff;
+			}
+			if(error > threshold) {
+				stats.skipped(count - i);
+				return error;
+			}
+		}
+		return error;
+	}
+
+	/**
+	 * Returns the number of samples per channel appended so far.
+	 */
+	public synchronized int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the best loops over the samples appended so far, best first.
+	 *
+	 * @return the loops or null if no loop is possible yet
+	 */
+	public synchronized Loop[] getLoops() {
+		if(loops.size() == 0) {
+			return null;
+		} else {
+			return loops.toArray();
+		}
+	}
+
+	public synchronized SearchStatistics getStatistics() {
+		SearchStatistics result = new SearchStatistics();
+		result.add(stats);
+		return result;
+	}
+}
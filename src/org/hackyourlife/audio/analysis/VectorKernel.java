@@ -0,0 +1,60 @@
+package org.hackyourlife.audio.analysis;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The float kernel of {@link ErrorKernel} with the Vector API. Only loaded by reflection, so the rest of the code
+ * compiles and runs without the incubator module; compile it with {@code --add-modules jdk.incubator.vector}.
+ */
+class VectorKernel implements ErrorKernel.Kernel {
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	VectorKernel() {
+		if(SPECIES.length() < 4) {
+			throw new UnsupportedOperationException("no SIMD support");
+		}
+	}
+
+	@Override
+	public float squaredError(float[] data, int a0, int b0, int count) {
+		int lanes = SPECIES.length();
+		FloatVector e0 = FloatVector.zero(SPECIES);
+		FloatVector e1 = FloatVector.zero(SPECIES);
+		FloatVector e2 = FloatVector.zero(SPECIES);
+		FloatVector e3 = FloatVector.zero(SPECIES);
+		int i = 0;
+		for(; i <= count - 4 * lanes; i += 4 * lanes) {
+			FloatVector d0 = FloatVector.fromArray(SPECIES, data, a0 + i)
+					.sub(FloatVector.fromArray(SPECIES, data, b0 + i));
+			FloatVector d1 = FloatVector.fromArray(SPECIES, data, a0 + i + lanes)
+					.sub(FloatVector.fromArray(SPECIES, data, b0 + i + lanes));
+			FloatVector d2 = FloatVector.fromArray(SPECIES, data, a0 + i + 2 * lanes)
+					.sub(FloatVector.fromArray(SPECIES, data, b0 + i + 2 * lanes));
+			FloatVector d3 = FloatVector.fromArray(SPECIES, data, a0 + i + 3 * lanes)
+					.sub(FloatVector.fromArray(SPECIES, data, b0 + i + 3 * lanes));
+			// mul + add instead of fma: fma is emulated (and very slow) on CPUs without FMA units
+			e0 = e0.add(d0.mul(d0));
+			e1 = e1.add(d1.mul(d1));
+			e2 = e2.add(d2.mul(d2));
+			e3 = e3.add(d3.mul(d3));
+		}
+		for(; i <= count - lanes; i += lanes) {
+			FloatVector d = FloatVector.fromArray(SPECIES, data, a0 + i)
+					.sub(FloatVector.fromArray(SPECIES, data, b0 + i));
+			e0 = e0.add(d.mul(d));
+		}
+		float error = e0.add(e1).add(e2.add(e3)).reduceLanes(VectorOperators.ADD);
+		for(; i < count; i++) {
+			float d = data[a0 + i] - data[b0 + i];
+			error += d * d;
+		}
+		return error;
+	}
+
+	@Override
+	public String getName() {
+		return "Vector API, " + SPECIES.vectorBitSize() + " bit";
+	}
+}
@@ -0,0 +1,58 @@
+package org.hackyourlife.audio.dsp;
+
+import org.hackyourlife.audio.AudioBuffer;
+
+/**
+ * Decimation by 2 with a linear phase half-band low-pass filter (Blackman windowed sinc). The filter is centered on
+ * the kept samples, so sample i of the result corresponds to sample 2i of the input without any delay.
+ */
+public class Decimator {
+	private static final int HALF_LENGTH = 16;
+	private static final double[] FILTER = makeFilter();
+
+	private static double[] makeFilter() {
+		int n = 2 * HALF_LENGTH + 1;
+		double[] h = new double[n];
+		double sum = 0;
+		for(int i = 0; i < n; i++) {
+			int k = i - HALF_LENGTH;
+			double sinc = k == 0 ? 0.5 : Math.sin(Math.PI * k / 2) / (Math.PI * k);
+			double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * (i + 1) / (n + 1)) +
+					0.08 * Math.cos(4 * Math.PI * (i + 1) / (n + 1));
+			h[i] = sinc * window;
+			sum += h[i];
+		}
+		for(int i = 0; i < n; i++) {
+			h[i] /= sum;
+		}
+		return h;
+	}
+
+	/**
+	 * Low-pass filters the samples at a quarter of the sample rate and drops every second sample. The result has
+	 * the same layout as the input.
+	 */
+	public static AudioBuffer decimate(AudioBuffer samples) {
+		int nch = samples.getChannels();
+		int len = samples.getLength();
+		int outlen = (len + 1) / 2;
+		AudioBuffer result = new AudioBuffer(nch, outlen, samples.getLayout());
+		float[] in = samples.getData();
+		float[] out = result.getData();
+		int stride = samples.getFrameStride();
+		for(int ch = 0; ch < nch; ch++) {
+			for(int i = 0; i < outlen; i++) {
+				int center = 2 * i;
+				int from = Math.max(center - HALF_LENGTH, 0);
+				int to = Math.min(center + HALF_LENGTH, len - 1);
+				double sum = 0;
+				int off = samples.offset(ch, from);
+				for(int j = from; j <= to; j++, off += stride) {
+					sum += FILTER[j - center + HALF_LENGTH] * in[off];
+				}
+				out[result.offset(ch, i)] = (float) sum;
+			}
+		}
+		return result;
+	}
+}
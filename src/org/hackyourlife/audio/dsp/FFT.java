@@ -50,7 +50,7 @@ public class FFT {
 
 	/**
 	 * The FFT method. Calculation is inline, for complex data stored in 2 separate arrays. Length of input data
-	 * must be a power of two.
+	 * must be a power of two. Uses the cached {@link FFTPlan} for the size.
 	 *
 	 * @param re
 	 *                the real part of the complex input and output data
@@ -62,52 +62,7 @@ public class FFT {
 	 *                 if the length of the input data is not a power of 2
 	 */
 	public static void fft(double re[], double im[], int direction) {
-		int n = re.length;
-		int bits = (int) Math.rint(Math.log(n) / Math.log(2));
-		if(n != (1 << bits)) {
-			throw new IllegalArgumentException("FFT data must be power of 2");
-		}
-		int localN;
-		int j = 0;
-		for(int i = 0; i < n - 1; i++) {
-			if(i < j) {
-				double temp = re[j];
-				re[j] = re[i];
-				re[i] = temp;
-				temp = im[j];
-				im[j] = im[i];
-				im[i] = temp;
-			}
-			int k = n / 2;
-			while((k >= 1) && (k - 1 < j)) {
-				j = j - k;
-				k = k / 2;
-			}
-			j = j + k;
-		}
-		for(int m = 1; m <= bits; m++) {
-			localN = 1 << m;
-			double Wjk_r = 1;
-			double Wjk_i = 0;
-			double theta = twoPI / localN;
-			double Wj_r = Math.cos(theta);
-			double Wj_i = direction * Math.sin(theta);
-			int nby2 = localN / 2;
-			for(j = 0; j < nby2; j++) {
-				for(int k = j; k < n; k += localN) {
-					int id = k + nby2;
-					double tempr = Wjk_r * re[id] - Wjk_i * im[id];
-					double tempi = Wjk_r * im[id] + Wjk_i * re[id];
-					re[id] = re[k] - tempr;
-					im[id] = im[k] - tempi;
-					re[k] += tempr;
-					im[k] += tempi;
-				}
-				double wtemp = Wjk_r;
-				Wjk_r = Wj_r * Wjk_r - Wj_i * Wjk_i;
-				Wjk_i = Wj_r * Wjk_i + Wj_i * wtemp;
-			}
-		}
+		FFTPlan.get(re.length).fft(re, im, direction);
 	}
 
 	/**
@@ -117,10 +72,11 @@ public class FFT {
 	 *                the real input and output data; length must be a power of 2
 	 */
 	public static void powerFFT(double[] re) {
-		double[] im = new double[re.length];
-		fft(re, im, FORWARD);
-		for(int i = 0; i < re.length; i++) {
-			re[i] = re[i] * re[i] + im[i] * im[i];
+		int n = re.length;
+		FFTPlan.get(n).powerSpectrum(re);
+		// the spectrum of a real sequence is symmetric
+		for(int i = 1; i < n / 2; i++) {
+			re[n - i] = re[i];
 		}
 	}
 
@@ -355,6 +311,21 @@ public class FFT {
 		return data;
 	}
 
+	/**
+	 * Returns the center frequency of an FFT bin.
+	 *
+	 * @param bin
+	 *                the bin index
+	 * @param size
+	 *                the size of the FFT
+	 * @param sampleRate
+	 *                the sample rate of the transformed signal
+	 * @return the frequency in Hz
+	 */
+	public static double binFrequency(int bin, int size, double sampleRate) {
+		return bin * sampleRate / size;
+	}
+
 	/**
 	 * Returns an array of values of a normalised smooth window function, as used for performing a short time
 	 * Fourier transform (STFT). All functions are normalised by length and coherent gain. More information on
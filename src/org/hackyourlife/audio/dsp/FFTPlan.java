@@ -0,0 +1,215 @@
+package org.hackyourlife.audio.dsp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed tables for FFTs of one size. Plans are immutable and cached per size, so they can be shared between
+ * threads; use {@link FFTPlan#get(int)} to obtain one.
+ *
+ * Besides the complex transform, a plan provides a real-input transform: the n real samples are packed into n/2
+ * complex points, transformed with a complex FFT of half the size and then separated into the spectrum of the real
+ * sequence. This is roughly twice as fast as a complex transform with a zero imaginary part.
+ */
+public class FFTPlan {
+	private static final Map<Integer, FFTPlan> PLANS = new ConcurrentHashMap<>();
+
+	private final int size;
+	private final int bits;
+	// cos(2 pi k / size) and sin(2 pi k / size) for k < size / 2
+	private final double[] cos;
+	private final double[] sin;
+	// bit reversed indices for the complex transform of the full size
+	private final int[] reverse;
+
+	private FFTPlan(int size) {
+		this.size = size;
+		bits = Integer.numberOfTrailingZeros(size);
+
+		int half = Math.max(size / 2, 1);
+		cos = new double[half];
+		sin = new double[half];
+		for(int k = 0; k < half; k++) {
+			double theta = 2 * Math.PI * k / size;
+			cos[k] = Math.cos(theta);
+			sin[k] = Math.sin(theta);
+		}
+
+		reverse = new int[size];
+		for(int i = 0; i < size; i++) {
+			reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+
+	/**
+	 * Returns the (cached) plan for the given size.
+	 *
+	 * @throws IllegalArgumentException
+	 *                 if the size is not a power of 2
+	 */
+	public static FFTPlan get(int size) {
+		if(size < 1 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("FFT data must be power of 2");
+		}
+		FFTPlan plan = PLANS.get(size);
+		if(plan == null) {
+			plan = PLANS.computeIfAbsent(size, FFTPlan::new);
+		}
+		return plan;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Complex FFT, in place, for data stored in 2 separate arrays of the plan size.
+	 *
+	 * @param re
+	 *                the real part of the complex input and output data
+	 * @param im
+	 *                the imaginary part of the complex input and output data
+	 * @param direction
+	 *                the direction of the Fourier transform ({@link FFT#FORWARD} or {@link FFT#REVERSE})
+	 */
+	public void fft(double[] re, double[] im, int direction) {
+		int n = size;
+		for(int i = 0; i < n; i++) {
+			int j = reverse[i];
+			if(i < j) {
+				double temp = re[j];
+				re[j] = re[i];
+				re[i] = temp;
+				temp = im[j];
+				im[j] = im[i];
+				im[i] = temp;
+			}
+		}
+		for(int localN = 2; localN <= n; localN <<= 1) {
+			int nby2 = localN / 2;
+			int stride = n / localN;
+			for(int j = 0; j < nby2; j++) {
+				double wr = cos[j * stride];
+				double wi = direction * sin[j * stride];
+				for(int k = j; k < n; k += localN) {
+					int id = k + nby2;
+					double tempr = wr * re[id] - wi * im[id];
+					double tempi = wr * im[id] + wi * re[id];
+					re[id] = re[k] - tempr;
+					im[id] = im[k] - tempi;
+					re[k] += tempr;
+					im[k] += tempi;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forward FFT of a real sequence, in place. The result is packed into the input array: data[0] is the (real)
+	 * DC bin, data[1] is the (real) Nyquist bin, and data[2k], data[2k+1] are the real and imaginary part of bin k
+	 * for 0 &lt; k &lt; n/2. The other half of the spectrum is the complex conjugate.
+	 *
+	 * @param data
+	 *                the real input and packed complex output data; length must be the plan size
+	 */
+	public void realFFT(double[] data) {
+		int n = size;
+		if(n == 1) {
+			return;
+		}
+		int m = n / 2;
+
+		// complex FFT of m points stored interleaved in data, with twiddles taken from the size n table
+		for(int i = 0; i < m; i++) {
+			int j = reverse[i] >>> 1;
+			if(i < j) {
+				double temp = data[2 * j];
+				data[2 * j] = data[2 * i];
+				data[2 * i] = temp;
+				temp = data[2 * j + 1];
+				data[2 * j + 1] = data[2 * i + 1];
+				data[2 * i + 1] = temp;
+			}
+		}
+		for(int localN = 2; localN <= m; localN <<= 1) {
+			int nby2 = localN / 2;
+			int stride = n / localN;
+			for(int j = 0; j < nby2; j++) {
+				double wr = cos[j * stride];
+				double wi = -sin[j * stride];
+				for(int k = j; k < m; k += localN) {
+					int a = 2 * k;
+					int b = 2 * (k + nby2);
+					double tempr = wr * data[b] - wi * data[b + 1];
+					double tempi = wr * data[b + 1] + wi * data[b];
+					data[b] = data[a] - tempr;
+					data[b + 1] = data[a + 1] - tempi;
+					data[a] += tempr;
+					data[a + 1] += tempi;
+				}
+			}
+		}
+
+		// separate the spectra of the even and odd samples: X[k] = E[k] + W^k O[k], X[m-k] = conj(E[k] - W^k O[k])
+		double z0r = data[0];
+		double z0i = data[1];
+		data[0] = z0r + z0i;
+		data[1] = z0r - z0i;
+		for(int k = 1; k <= m / 2; k++) {
+			int a = 2 * k;
+			int b = 2 * (m - k);
+			double er = 0.5 * (data[a] + data[b]);
+			double ei = 0.5 * (data[a + 1] - data[b + 1]);
+			double or = 0.5 * (data[a + 1] + data[b + 1]);
+			double oi = 0.5 * (data[b] - data[a]);
+			double wr = cos[k];
+			double wi = -sin[k];
+			double tr = wr * or - wi * oi;
+			double ti = wr * oi + wi * or;
+			data[a] = er + tr;
+			data[a + 1] = ei + ti;
+			data[b] = er - tr;
+			data[b + 1] = ti - ei;
+		}
+	}
+
+	/**
+	 * Computes the power spectrum of a real sequence, in place. Afterwards data[k] contains the power of bin k for
+	 * 0 &lt;= k &lt;= n/2; the remaining elements are undefined.
+	 *
+	 * @param data
+	 *                the real input and output data; length must be the plan size
+	 */
+	public void powerSpectrum(double[] data) {
+		int n = size;
+		if(n == 1) {
+			data[0] = data[0] * data[0];
+			return;
+		}
+		realFFT(data);
+		double dc = data[0];
+		double nyquist = data[1];
+		// slot k belongs to bin k/2, which has already been consumed
+		for(int k = 1; k < n / 2; k++) {
+			double re = data[2 * k];
+			double im = data[2 * k + 1];
+			data[k] = re * re + im * im;
+		}
+		data[0] = dc * dc;
+		data[n / 2] = nyquist * nyquist;
+	}
+
+	/**
+	 * Computes the magnitude spectrum of a real sequence, in place. Afterwards data[k] contains the magnitude of
+	 * bin k for 0 &lt;= k &lt;= n/2; the remaining elements are undefined.
+	 *
+	 * @param data
+	 *                the real input and output data; length must be the plan size
+	 */
+	public void magnitudeSpectrum(double[] data) {
+		powerSpectrum(data);
+		for(int k = 0; k <= size / 2; k++) {
+			data[k] = Math.sqrt(data[k]);
+		}
+	}
+}
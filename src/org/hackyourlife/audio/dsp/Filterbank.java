@@ -0,0 +1,155 @@
+package org.hackyourlife.audio.dsp;
+
+/**
+ * Triangular filterbank on a perceptual frequency scale, which reduces the bins of a magnitude spectrum to a small
+ * number of bands. The filters are spaced evenly on the mel or bark scale between 0 Hz and the Nyquist frequency and
+ * overlap by half; every band is the weighted mean of the magnitudes under its triangle, so the bands have the same
+ * scale as the bins.
+ *
+ * The weights are computed once from the FFT bin frequencies and stored sparse, so projecting a spectrum costs about
+ * two multiply-adds per bin. A filterbank is immutable and can be shared between threads.
+ */
+public class Filterbank {
+	/**
+	 * used in {@link Filterbank#Filterbank(int, int, int, double)} to specify the mel scale
+	 */
+	public static final int MEL = 0;
+	/**
+	 * used in {@link Filterbank#Filterbank(int, int, int, double)} to specify the bark scale
+	 */
+	public static final int BARK = 1;
+
+	private final int scale;
+	private final int bands;
+	private final int fftSize;
+	// band b uses the bins [first[b], first[b] + weights[b].length)
+	private final int[] first;
+	private final double[][] weights;
+
+	/**
+	 * @param scale
+	 *                the frequency scale ({@link Filterbank#MEL} or {@link Filterbank#BARK})
+	 * @param bands
+	 *                the number of bands
+	 * @param fftSize
+	 *                the size of the FFT; the spectrum has fftSize / 2 bins
+	 * @param sampleRate
+	 *                the sample rate of the analyzed signal
+	 */
+	public Filterbank(int scale, int bands, int fftSize, double sampleRate) {
+		if(scale != MEL && scale != BARK) {
+			throw new IllegalArgumentException("invalid scale " + scale);
+		}
+		if(bands < 1 || fftSize < 2 || bands > fftSize / 2) {
+			throw new IllegalArgumentException("invalid number of bands");
+		}
+		this.scale = scale;
+		this.bands = bands;
+		this.fftSize = fftSize;
+		first = new int[bands];
+		weights = new double[bands][];
+
+		int bins = fftSize / 2;
+		double low = toScale(scale, 0);
+		double high = toScale(scale, sampleRate / 2);
+		double[] edges = new double[bands + 2];
+		for(int i = 0; i < edges.length; i++) {
+			edges[i] = fromScale(scale, low + (high - low) * i / (bands + 1));
+		}
+
+		double[] w = new double[bins];
+		for(int b = 0; b < bands; b++) {
+			double left = edges[b];
+			double center = edges[b + 1];
+			double right = edges[b + 2];
+			int from = bins;
+			int to = 0;
+			double sum = 0;
+			for(int k = 0; k < bins; k++) {
+				double f = FFT.binFrequency(k, fftSize, sampleRate);
+				double weight;
+				if(f <= left || f >= right) {
+					weight = 0;
+				} else if(f <= center) {
+					weight = (f - left) / (center - left);
+				} else {
+					weight = (right - f) / (right - center);
+				}
+				w[k] = weight;
+				if(weight > 0) {
+					from = Math.min(from, k);
+					to = k + 1;
+					sum += weight;
+				}
+			}
+			if(sum == 0) {
+				// narrow low band between two bins: use the nearest bin
+				int k = (int) Math.round(center * fftSize / sampleRate);
+				k = Math.min(Math.max(k, 0), bins - 1);
+				first[b] = k;
+				weights[b] = new double[] { 1 };
+				continue;
+			}
+			first[b] = from;
+			weights[b] = new double[to - from];
+			for(int k = from; k < to; k++) {
+				weights[b][k - from] = w[k] / sum;
+			}
+		}
+	}
+
+	public int getScale() {
+		return scale;
+	}
+
+	public int getBands() {
+		return bands;
+	}
+
+	public int getFFTSize() {
+		return fftSize;
+	}
+
+	/**
+	 * Projects a magnitude spectrum onto the bands.
+	 *
+	 * @param spectrum
+	 *                the magnitudes of the bins 0 to fftSize / 2 - 1
+	 * @param out
+	 *                receives the band values; length must be at least the number of bands
+	 */
+	public void apply(double[] spectrum, double[] out) {
+		for(int b = 0; b < bands; b++) {
+			double[] w = weights[b];
+			int off = first[b];
+			double sum = 0;
+			for(int i = 0; i < w.length; i++) {
+				sum += w[i] * spectrum[off + i];
+			}
+			out[b] = sum;
+		}
+	}
+
+	/**
+	 * Converts a frequency in Hz to the mel or bark scale.
+	 */
+	public static double toScale(int scale, double freq) {
+		if(scale == BARK) {
+			// Traunmueller (1990)
+			return 26.81 * freq / (1960 + freq) - 0.53;
+		} else {
+			return 2595 * Math.log10(1 + freq / 700);
+		}
+	}
+
+	/**
+	 * Converts a value on the mel or bark scale to a frequency in Hz.
+	 */
+	public static double fromScale(int scale, double value) {
+		if(scale == BARK) {
+			return 1960 * (value + 0.53) / (26.28 - value);
+		} else {
+			return 700 * (Math.pow(10, value / 2595) - 1);
+		}
+	}
+}
@@ -1,40 +1,14 @@
 package org.hackyourlife.audio.io;
 
-import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteOrder;
 
 public class LEInputStream extends WordInputStream {
 	public LEInputStream(InputStream parent) {
-		super(parent);
+		super(parent, ByteOrder.LITTLE_ENDIAN);
 	}
 
 	public LEInputStream(InputStream parent, long offset) {
-		super(parent, offset);
-	}
-
-	@Override
-	public int read8bit() throws IOException {
-		return read();
-	}
-
-	@Override
-	public short read16bit() throws IOException {
-		byte[] buf = new byte[2];
-		read(buf);
-		return Endianess.get16bitLE(buf);
-	}
-
-	@Override
-	public int read32bit() throws IOException {
-		byte[] buf = new byte[4];
-		read(buf);
-		return Endianess.get32bitLE(buf);
-	}
-
-	@Override
-	public long read64bit() throws IOException {
-		byte[] buf = new byte[8];
-		read(buf);
-		return Endianess.get64bitLE(buf);
+		super(parent, offset, ByteOrder.LITTLE_ENDIAN);
 	}
 }
@@ -3,19 +3,35 @@ package org.hackyourlife.audio.io;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Buffered input stream for binary data with a fixed byte order. The words are decoded from an internal
+ * {@link ByteBuffer}, so reading a word does not allocate and most reads do not touch the parent stream.
+ *
+ * All reads are full reads: they either return the requested number of bytes or throw an {@link EOFException}.
+ * Since the stream reads ahead, the parent stream must not be used directly while this stream is in use.
+ */
 public abstract class WordInputStream extends InputStream {
-	private InputStream parent;
+	private static final int BUFFER_SIZE = 8192;
+
+	private final InputStream parent;
+	private final byte[] data = new byte[BUFFER_SIZE];
+	// the unread bytes are [position, limit)
+	private final ByteBuffer buffer;
 	private boolean eof = false;
 	private long offset = 0;
 
-	public WordInputStream(InputStream parent) {
-		this.parent = parent;
+	protected WordInputStream(InputStream parent, ByteOrder order) {
+		this(parent, 0, order);
 	}
 
-	public WordInputStream(InputStream parent, long offset) {
+	protected WordInputStream(InputStream parent, long offset, ByteOrder order) {
 		this.parent = parent;
 		this.offset = offset;
+		buffer = ByteBuffer.wrap(data).order(order);
+		buffer.limit(0);
 	}
 
 	@Override
@@ -25,83 +41,181 @@ public abstract class WordInputStream extends InputStream {
 
 	@Override
 	public int available() throws IOException {
-		return parent.available();
+		return buffer.remaining() + parent.available();
 	}
 
+	/**
+	 * Skips n bytes. Less than n bytes are only skipped at the end of the stream.
+	 */
 	@Override
 	public long skip(long n) throws IOException {
-		offset += n;
-		return parent.skip(n);
-	}
-
-	@Override
-	public synchronized void mark(int readlimit) {
-		parent.mark(readlimit);
-	}
-
-	@Override
-	public synchronized void reset() throws IOException {
-		parent.reset();
+		if(n <= 0) {
+			return 0;
+		}
+		long skipped = Math.min(n, buffer.remaining());
+		buffer.position(buffer.position() + (int) skipped);
+		while(skipped < n) {
+			long result = parent.skip(n - skipped);
+			if(result <= 0) {
+				// skip does not report the end of the stream, read instead
+				if(parent.read() == -1) {
+					eof = true;
+					break;
+				}
+				result = 1;
+			}
+			skipped += result;
+		}
+		offset += skipped;
+		return skipped;
 	}
 
 	@Override
 	public boolean markSupported() {
-		return parent.markSupported();
+		return false;
 	}
 
 	public boolean isEOF() {
 		return eof;
 	}
 
-	@Override
-	public int read() throws IOException {
-		if(eof)
+	/**
+	 * Makes sure at least n bytes (n &lt;= buffer size) are buffered.
+	 */
+	private void require(int n) throws IOException {
+		if(buffer.remaining() >= n) {
+			return;
+		}
+		if(eof) {
 			throw new EOFException();
-		int result = parent.read();
-		if(result == -1) {
-			eof = true;
+		}
+		buffer.compact();
+		while(buffer.position() < n) {
+			int result = parent.read(data, buffer.position(), buffer.remaining());
+			if(result == -1) {
+				eof = true;
+				break;
+			}
+			buffer.position(buffer.position() + result);
+		}
+		buffer.flip();
+		if(buffer.remaining() < n) {
 			throw new EOFException();
 		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		require(1);
 		offset++;
-		return result;
+		return buffer.get() & 0xFF;
 	}
 
 	@Override
-	public int read(byte[] buffer) throws IOException {
-		if(eof)
-			throw new EOFException();
-		int result = parent.read(buffer);
-		if(result == -1) {
-			eof = true;
-			throw new EOFException();
-		}
-		offset += result;
-		return result;
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
 	}
 
+	/**
+	 * Reads exactly length bytes.
+	 *
+	 * @throws EOFException
+	 *                 if the stream ends before all bytes are read
+	 */
 	@Override
-	public int read(byte[] buffer, int off, int length)
-			throws IOException {
-		if(eof)
-			throw new EOFException();
-		int result = parent.read(buffer, off, length);
-		if(result == -1) {
-			eof = true;
-			throw new EOFException();
+	public int read(byte[] b, int off, int length) throws IOException {
+		int n = Math.min(length, buffer.remaining());
+		buffer.get(b, off, n);
+		offset += n;
+		int pos = off + n;
+		int end = off + length;
+		if(pos < end && end - pos >= BUFFER_SIZE) {
+			// large reads bypass the buffer
+			while(pos < end) {
+				int result = parent.read(b, pos, end - pos);
+				if(result == -1) {
+					eof = true;
+					throw new EOFException();
+				}
+				pos += result;
+				offset += result;
+			}
+		} else if(pos < end) {
+			require(end - pos);
+			buffer.get(b, pos, end - pos);
+			offset += end - pos;
 		}
-		offset += result;
-		return result;
+		return length;
 	}
 
 	public long tell() {
 		return offset;
 	}
 
-	public abstract int read8bit() throws IOException;
+	public int read8bit() throws IOException {
+		return read();
+	}
+
+	public short read16bit() throws IOException {
+		require(2);
+		offset += 2;
+		return buffer.getShort();
+	}
+
+	public int read32bit() throws IOException {
+		require(4);
+		offset += 4;
+		return buffer.getInt();
+	}
+
+	public long read64bit() throws IOException {
+		require(8);
+		offset += 8;
+		return buffer.getLong();
+	}
+
+	public float read32bitFloat() throws IOException {
+		require(4);
+		offset += 4;
+		return buffer.getFloat();
+	}
 
-	public abstract short read16bit() throws IOException;
+	public double read64bitDouble() throws IOException {
+		require(8);
+		offset += 8;
+		return buffer.getDouble();
+	}
 
-	public abstract int read32bit() throws IOException;
+	public void read16bit(short[] values, int off, int length) throws IOException {
+		for(int i = off; i < off + length;) {
+			require(2);
+			int end = Math.min(off + length, i + buffer.remaining() / 2);
+			offset += 2 * (end - i);
+			for(; i < end; i++) {
+				values[i] = buffer.getShort();
+			}
+		}
+	}
 
-	public abstract long read64bit() throws IOException;
+	public void read32bit(int[] values, int off, int length) throws IOException {
+		for(int i = off; i < off + length;) {
+			require(4);
+			int end = Math.min(off + length, i + buffer.remaining() / 4);
+			offset += 4 * (end - i);
+			for(; i < end; i++) {
+				values[i] = buffer.getInt();
+			}
+		}
+	}
+
+	public void read32bit(float[] values, int off, int length) throws IOException {
+		for(int i = off; i < off + length;) {
+			require(4);
+			int end = Math.min(off + length, i + buffer.remaining() / 4);
+			offset += 4 * (end - i);
+			for(; i < end; i++) {
+				values[i] = buffer.getFloat();
+			}
+		}
+	}
 }
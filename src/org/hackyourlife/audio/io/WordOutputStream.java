@@ -2,54 +2,92 @@ package org.hackyourlife.audio.io;
 
 import java.io.IOException;
 import java.io.OutputStream;
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Buffered output stream for binary data with a fixed byte order. The words are encoded into an internal
+ * {@link ByteBuffer}, so writing a word does not allocate and most writes do not touch the parent stream. Call
+ * {@link WordOutputStream#flush()} or {@link WordOutputStream#close()} to pass the buffered data on.
+ */
 public abstract class WordOutputStream extends OutputStream {
-	private OutputStream parent;
+	private static final int BUFFER_SIZE = 8192;
+
+	private final OutputStream parent;
+	private final byte[] data = new byte[BUFFER_SIZE];
+	// the pending bytes are [0, position)
+	private final ByteBuffer buffer;
 	private long offset;
 
-	public WordOutputStream(OutputStream parent) {
+	protected WordOutputStream(OutputStream parent, ByteOrder order) {
 		this.parent = parent;
 		this.offset = 0;
+		buffer = ByteBuffer.wrap(data).order(order);
 	}
 
 	@Override
 	public void close() throws IOException {
-		parent.close();
+		try {
+			flushBuffer();
+		} finally {
+			parent.close();
+		}
 	}
 
 	@Override
 	public void flush() throws IOException {
+		flushBuffer();
 		parent.flush();
 	}
 
+	private void flushBuffer() throws IOException {
+		if(buffer.position() > 0) {
+			parent.write(data, 0, buffer.position());
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Makes sure there is space for at least n bytes (n &lt;= buffer size) in the buffer.
+	 */
+	private void require(int n) throws IOException {
+		if(buffer.remaining() < n) {
+			flushBuffer();
+		}
+	}
+
 	@Override
 	public void write(int value) throws IOException {
-		parent.write(value);
+		require(1);
+		buffer.put((byte) value);
 		offset++;
 	}
 
 	@Override
-	public void write(byte[] buffer) throws IOException {
-		parent.write(buffer);
-		offset += buffer.length;
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
 	}
 
 	@Override
-	public void write(byte[] buffer, int off, int length)
-			throws IOException {
-		parent.write(buffer, off, length);
+	public void write(byte[] b, int off, int length) throws IOException {
+		if(length > buffer.remaining()) {
+			flushBuffer();
+		}
+		if(length >= BUFFER_SIZE) {
+			// large writes bypass the buffer
+			parent.write(b, off, length);
+		} else {
+			buffer.put(b, off, length);
+		}
 		offset += length;
 	}
 
 	public void pad(int boundary, byte filler) throws IOException {
 		long mod = offset % boundary;
-		long missing = boundary - mod;
 		if(mod == 0)
 			return;
-		byte[] pad = new byte[(int) missing];
-		for(int i = 0; i < pad.length; i++)
-			pad[i] = filler;
-		write(pad);
+		for(long i = mod; i < boundary; i++)
+			write(filler);
 	}
 
 	public void pad32() throws IOException {
@@ -64,15 +102,70 @@ public abstract class WordOutputStream extends OutputStream {
 		return offset;
 	}
 
-	public abstract void write8bit(byte value) throws IOException;
+	public void write8bit(byte value) throws IOException {
+		write(value);
+	}
+
+	public void write16bit(short value) throws IOException {
+		require(2);
+		buffer.putShort(value);
+		offset += 2;
+	}
+
+	public void write32bit(int value) throws IOException {
+		require(4);
+		buffer.putInt(value);
+		offset += 4;
+	}
 
-	public abstract void write16bit(short value) throws IOException;
+	public void write32bit(float value) throws IOException {
+		require(4);
+		buffer.putFloat(value);
+		offset += 4;
+	}
 
-	public abstract void write32bit(int value) throws IOException;
+	public void write64bit(long value) throws IOException {
+		require(8);
+		buffer.putLong(value);
+		offset += 8;
+	}
 
-	public abstract void write32bit(float value) throws IOException;
+	public void write64bit(double value) throws IOException {
+		require(8);
+		buffer.putDouble(value);
+		offset += 8;
+	}
 
-	public abstract void write64bit(long value) throws IOException;
+	public void write16bit(short[] values, int off, int length) throws IOException {
+		for(int i = off; i < off + length;) {
+			require(2);
+			int end = Math.min(off + length, i + buffer.remaining() / 2);
+			offset += 2 * (end - i);
+			for(; i < end; i++) {
+				buffer.putShort(values[i]);
+			}
+		}
+	}
+
+	public void write32bit(int[] values, int off, int length) throws IOException {
+		for(int i = off; i < off + length;) {
+			require(4);
+			int end = Math.min(off + length, i + buffer.remaining() / 4);
+			offset += 4 * (end - i);
+			for(; i < end; i++) {
+				buffer.putInt(values[i]);
+			}
+		}
+	}
 
-	public abstract void write64bit(double value) throws IOException;
+	public void write32bit(float[] values, int off, int length) throws IOException {
+		for(int i = off; i < off + length;) {
+			require(4);
+			int end = Math.min(off + length, i + buffer.remaining() / 4);
+			offset += 4 * (end - i);
+			for(; i < end; i++) {
+				buffer.putFloat(values[i]);
+			}
+		}
+	}
 }
@@ -0,0 +1,325 @@
+package org.hackyourlife.audio.io.riff;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hackyourlife.audio.io.FourCC;
+import org.hackyourlife.audio.io.LEInputStream;
+
+/**
+ * Read-only RIFF/WAVE file which is memory mapped instead of read. Opening a file only reads the chunk headers and
+ * the fmt chunk; the data chunk is never copied, the samples are decoded on demand from the mapped file. This means
+ * the file can be larger than the heap, and only the parts which are actually accessed are read from disk.
+ *
+ * The int sample accessors return the same values as {@link RiffWave#getSamples()}; the float accessors return
+ * these values scaled to [-1, 1), or the stored value for float data.
+ */
+public class MappedRiffWave implements Closeable {
+	private final FileChannel channel;
+	// chunk id -> { offset of the chunk data, size of the chunk data }
+	private final Map<Integer, long[]> chunks = new LinkedHashMap<>();
+	private final WaveFormatChunk format;
+	private final ByteBuffer data;
+	private final SampleDecoder decoder;
+	private final int frameSize;
+	private final int frames;
+
+	private MappedRiffWave(FileChannel channel) throws IOException {
+		this.channel = channel;
+		long fileSize = channel.size();
+
+		ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(header, 0);
+		if(header.getInt(0) != Riff.MAGIC) {
+			throw new IOException("not a RIFF file");
+		}
+		long riffEnd = Math.min(8 + Integer.toUnsignedLong(header.getInt(4)), fileSize);
+		int type = header.getInt(8);
+		if(type != RiffWave.MAGIC) {
+			throw new IOException("unknown RIFF type " + FourCC.fourCC(Integer.reverseBytes(type)));
+		}
+
+		// index the chunks
+		ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+		for(long pos = 12; pos + 8 <= riffEnd;) {
+			chunkHeader.clear();
+			readFully(chunkHeader, pos);
+			int id = chunkHeader.getInt(0);
+			long size = Integer.toUnsignedLong(chunkHeader.getInt(4));
+			if(pos + 8 + size > fileSize) {
+				throw new IOException("invalid size of " + FourCC.fourCC(Integer.reverseBytes(id)) + " chunk: " +
+						size);
+			}
+			if(!chunks.containsKey(id)) {
+				chunks.put(id, new long[] { pos + 8, size });
+			}
+			pos += 8 + size + (size & 1);
+		}
+
+		format = readChunk(WaveFormatChunk.MAGIC);
+		if(format == null) {
+			throw new IOException("no fmt chunk found");
+		}
+		long[] dataChunk = chunks.get(DataChunk.MAGIC);
+		if(dataChunk == null) {
+			throw new IOException("no data chunk found");
+		}
+		if(dataChunk[1] > Integer.MAX_VALUE) {
+			throw new IOException("data chunk too large to map: " + dataChunk[1] + " bytes");
+		}
+
+		decoder = SampleDecoder.get(format.getBitsPerSample(), format.getFormat());
+		frameSize = format.getChannels() * decoder.bytes;
+		if(frameSize == 0) {
+			throw new IOException("invalid number of channels");
+		}
+		frames = (int) (dataChunk[1] / frameSize);
+
+		MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, dataChunk[0], dataChunk[1]);
+		data = mapped.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public static MappedRiffWave open(String filename) throws IOException {
+		return open(Paths.get(filename));
+	}
+
+	public static MappedRiffWave open(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			return new MappedRiffWave(channel);
+		} catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private void readFully(ByteBuffer buf, long pos) throws IOException {
+		while(buf.hasRemaining()) {
+			int n = channel.read(buf, pos);
+			if(n < 0) {
+				throw new IOException("unexpected end of file");
+			}
+			pos += n;
+		}
+	}
+
+	/**
+	 * Returns the file offset of the data of the first chunk with the given id, or -1 if there is no such chunk.
+	 */
+	public long getChunkOffset(int id) {
+		long[] chunk = chunks.get(id);
+		return chunk == null ? -1 : chunk[0];
+	}
+
+	/**
+	 * Returns the size of the data of the first chunk with the given id, or -1 if there is no such chunk.
+	 */
+	public long getChunkSize(int id) {
+		long[] chunk = chunks.get(id);
+		return chunk == null ? -1 : chunk[1];
+	}
+
+	/**
+	 * Reads and parses a chunk. Meant for the small header chunks; use {@link MappedRiffWave#getData()} for the
+	 * data chunk.
+	 *
+	 * @return the chunk, or null if the file does not contain it or the chunk type is unknown
+	 */
+	public <T extends Chunk> T readChunk(int id) throws IOException {
+		long[] chunk = chunks.get(id);
+		if(chunk == null) {
+			return null;
+		}
+		// the pad byte of an odd sized chunk may be missing at the end of the file
+		ByteBuffer buf = ByteBuffer.allocate((int) (8 + chunk[1] + (chunk[1] & 1)));
+		buf.limit((int) (8 + chunk[1]));
+		readFully(buf, chunk[0] - 8);
+		try(LEInputStream in = new LEInputStream(new ByteArrayInputStream(buf.array()))) {
+			return Chunk.read(in);
+		}
+	}
+
+	/**
+	 * Returns a {@link RiffWave} with all known chunks of the file except the sample data, which is empty.
+	 */
+	public RiffWave readHeader() throws IOException {
+		RiffWave wav = new RiffWave();
+		for(int id : chunks.keySet()) {
+			if(id == DataChunk.MAGIC) {
+				wav.set(new DataChunk());
+			} else {
+				Chunk c = readChunk(id);
+				if(c != null) {
+					wav.set(c);
+				}
+			}
+		}
+		return wav;
+	}
+
+	public WaveFormatChunk getFormat() {
+		return format;
+	}
+
+	public int getSampleRate() {
+		return format.getSampleRate();
+	}
+
+	public int getChannels() {
+		return format.getChannels();
+	}
+
+	public short getSampleFormat() {
+		return format.getFormat();
+	}
+
+	public short getBitsPerSample() {
+		return format.getBitsPerSample();
+	}
+
+	public int getFrameCount() {
+		return frames;
+	}
+
+	/**
+	 * Returns a read-only little endian view of the data chunk.
+	 */
+	public ByteBuffer getData() {
+		return data.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Returns one sample scaled to the full int range, like {@link RiffWave#getSamples()}.
+	 */
+	public int getSample(int ch, int frame) {
+		return decoder.get(data, frame * frameSize + ch * decoder.bytes);
+	}
+
+	/**
+	 * Returns one sample scaled to [-1, 1).
+	 */
+	public float getFloatSample(int ch, int frame) {
+		return decoder.getFloat(data, frame * frameSize + ch * decoder.bytes);
+	}
+
+	/**
+	 * Decodes the samples of the frames [start, start + count) of all channels.
+	 */
+	public int[][] getSamples(int start, int count) {
+		if(start < 0 || count < 0 || start + count > frames) {
+			throw new IndexOutOfBoundsException("invalid range " + start + " + " + count);
+		}
+		int nch = getChannels();
+		int[][] samples = new int[nch][count];
+		for(int ch = 0; ch < nch; ch++) {
+			int off = start * frameSize + ch * decoder.bytes;
+			for(int i = 0; i < count; i++, off += frameSize) {
+				samples[ch][i] = decoder.get(data, off);
+			}
+		}
+		return samples;
+	}
+
+	public int[][] getSamples() {
+		return getSamples(0, frames);
+	}
+
+	/**
+	 * Copies the raw data of the frames [start, start + count) to a channel, without decoding and, if the
+	 * operating system supports it, without copying the data through the heap.
+	 */
+	public void transferTo(int start, int count, WritableByteChannel target) throws IOException {
+		if(start < 0 || count < 0 || start + count > frames) {
+			throw new IndexOutOfBoundsException("invalid range " + start + " + " + count);
+		}
+		long pos = chunks.get(DataChunk.MAGIC)[0] + (long) start * frameSize;
+		long end = pos + (long) count * frameSize;
+		while(pos < end) {
+			long n = channel.transferTo(pos, end - pos, target);
+			if(n <= 0) {
+				throw new IOException("cannot transfer sample data");
+			}
+			pos += n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private abstract static class SampleDecoder {
+		final int bytes;
+
+		SampleDecoder(int bytes) {
+			this.bytes = bytes;
+		}
+
+		abstract int get(ByteBuffer buf, int off);
+
+		float getFloat(ByteBuffer buf, int off) {
+			return get(buf, off) / (float) 0x80000000L;
+		}
+
+		static SampleDecoder get(int bits, int format) throws IOException {
+			switch(bits) {
+			case 8:
+				return new SampleDecoder(1) {
+					@Override
+					int get(ByteBuffer buf, int off) {
+						return buf.get(off) << 24;
+					}
+				};
+			case 16:
+				return new SampleDecoder(2) {
+					@Override
+					int get(ByteBuffer buf, int off) {
+						return buf.getShort(off) << 16;
+					}
+				};
+			case 24:
+				return new SampleDecoder(3) {
+					@Override
+					int get(ByteBuffer buf, int off) {
+						return (buf.get(off) & 0xFF) << 8 | (buf.get(off + 1) & 0xFF) << 16 |
+								buf.get(off + 2) << 24;
+					}
+				};
+			case 32:
+				if(format == WaveFormatChunk.WAVE_FORMAT_IEEE_FLOAT) {
+					return new SampleDecoder(4) {
+						@Override
+						int get(ByteBuffer buf, int off) {
+							return (int) (buf.getFloat(off) * Integer.MAX_VALUE);
+						}
+
+						@Override
+						float getFloat(ByteBuffer buf, int off) {
+							return buf.getFloat(off);
+						}
+					};
+				} else {
+					return new SampleDecoder(4) {
+						@Override
+						int get(ByteBuffer buf, int off) {
+							return buf.getInt(off);
+						}
+					};
+				}
+			default:
+				throw new IOException("cannot get samples for " + bits + "bit sample data");
+			}
+		}
+	}
+}
@@ -32,6 +32,7 @@ public abstract class Riff extends Chunk {
 		if((int) (end - start) != size) {
 			throw new IOException("invalid size of RIFF chunk: " + (end - start) + " vs " + size);
 		}
+		wout.flush();
 	}
 
 	@SuppressWarnings("unchecked")
@@ -0,0 +1,170 @@
+package org.hackyourlife.audio.io.riff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a RIFF/WAVE file sequentially. The header chunks are written first, with a placeholder for the size of the
+ * RIFF and data chunks; the sample data is then appended either by copying raw data from a {@link MappedRiffWave}
+ * or by encoding int samples. The sizes are patched when the writer is closed, so the complete sample data never has
+ * to be in memory.
+ *
+ * The layout of the file is the same as with {@link Riff#write(java.io.OutputStream)}: fmt chunk, other chunks,
+ * data chunk.
+ */
+public class WaveWriter implements Closeable {
+	private static final int BUFFER_SIZE = 65536;
+
+	private final FileChannel channel;
+	private final short format;
+	private final int channels;
+	private final int bytes;
+	private final long dataOffset;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	private long dataSize = 0;
+
+	/**
+	 * Creates the file and writes the header. The data chunk of the header is replaced by an empty one.
+	 */
+	public WaveWriter(Path path, RiffWave header) throws IOException {
+		WaveFormatChunk fmt = header.get(WaveFormatChunk.MAGIC);
+		if(fmt == null) {
+			throw new IllegalArgumentException("no fmt chunk");
+		}
+		format = fmt.getFormat();
+		channels = fmt.getChannels();
+		int bits = fmt.getBitsPerSample();
+		if(bits != 8 && bits != 16 && bits != 24 && bits != 32) {
+			throw new IllegalStateException("cannot write samples for " + bits + "bit sample data");
+		}
+		bytes = bits / 8;
+
+		DataChunk empty = new DataChunk();
+		empty.setData(new byte[0]);
+		header.set(empty);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		header.write(out);
+		byte[] data = out.toByteArray();
+
+		channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			writeFully(ByteBuffer.wrap(data));
+		} catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		dataOffset = data.length;
+	}
+
+	private void writeFully(ByteBuffer buf) throws IOException {
+		while(buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		buffer.flip();
+		writeFully(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Returns true if the raw data of the source can be copied without conversion.
+	 */
+	public boolean isCompatible(MappedRiffWave source) {
+		return source.getSampleFormat() == format && source.getChannels() == channels &&
+				source.getBitsPerSample() == bytes * 8;
+	}
+
+	/**
+	 * Appends the frames [start, start + count) of the source. If the format is the same, the raw data is
+	 * transferred directly from file to file; otherwise it is decoded and encoded again.
+	 */
+	public void copy(MappedRiffWave source, int start, int count) throws IOException {
+		if(isCompatible(source)) {
+			flushBuffer();
+			source.transferTo(start, count, channel);
+			dataSize += (long) count * channels * bytes;
+		} else {
+			int block = BUFFER_SIZE / (channels * bytes);
+			for(int i = 0; i < count; i += block) {
+				int n = Math.min(block, count - i);
+				write(source.getSamples(start + i, n), 0, n);
+			}
+		}
+	}
+
+	/**
+	 * Appends the frames [off, off + count) of the samples, which are scaled to the full int range like the
+	 * result of {@link RiffWave#getSamples()}.
+	 */
+	public void write(int[][] samples, int off, int count) throws IOException {
+		if(samples.length != channels) {
+			throw new IllegalArgumentException("channel count mismatch");
+		}
+		for(int i = off; i < off + count; i++) {
+			if(buffer.remaining() < channels * bytes) {
+				flushBuffer();
+			}
+			for(int ch = 0; ch < channels; ch++) {
+				put(samples[ch][i]);
+			}
+		}
+		dataSize += (long) count * channels * bytes;
+	}
+
+	// same encoding as RiffWave.setSamples
+	private void put(int sample) {
+		switch(bytes) {
+		case 1:
+			buffer.put((byte) (sample >> 24));
+			break;
+		case 2:
+			buffer.putShort((short) (sample >> 16));
+			break;
+		case 3:
+			buffer.put((byte) (sample >> 8));
+			buffer.put((byte) (sample >> 16));
+			buffer.put((byte) (sample >> 24));
+			break;
+		default:
+			if(format == WaveFormatChunk.WAVE_FORMAT_IEEE_FLOAT) {
+				buffer.putFloat((float) (sample / (double) Integer.MAX_VALUE));
+			} else {
+				buffer.putInt(sample);
+			}
+		}
+	}
+
+	/**
+	 * Pads the data chunk to an even size and patches the sizes of the RIFF and data chunk.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if((dataSize & 1) != 0) {
+				buffer.put((byte) 0);
+			}
+			flushBuffer();
+			long end = channel.position();
+			if(dataSize > 0xFFFFFFFFL || end - 8 > 0xFFFFFFFFL) {
+				throw new IOException("sample data too large for a RIFF file");
+			}
+			ByteBuffer size = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+			size.putInt(0, (int) (end - 8));
+			channel.write(size, 4);
+			size.putInt(0, (int) dataSize);
+			size.clear();
+			channel.write(size, dataOffset - 4);
+		} finally {
+			channel.close();
+		}
+	}
+}